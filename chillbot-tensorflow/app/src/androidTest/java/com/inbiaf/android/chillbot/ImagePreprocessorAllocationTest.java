@@ -0,0 +1,120 @@
+package com.inbiaf.android.chillbot;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Instrumented test that fails if decoding and preprocessing a JPEG frame allocates any
+ * objects once the preprocessor has warmed up.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImagePreprocessorAllocationTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int MODEL_SIZE = 224;
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 20;
+
+    private ImagePreprocessor preprocessor;
+    private ByteBuffer jpeg;
+
+    @Before
+    public void setUp() {
+        preprocessor = new ImagePreprocessor(WIDTH, HEIGHT, MODEL_SIZE, MODEL_SIZE);
+
+        Bitmap frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                row[x] = 0xFF000000 | ((x & 0xFF) << 16) | ((y & 0xFF) << 8) | ((x + y) & 0xFF);
+            }
+            frame.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        byte[] bytes = out.toByteArray();
+        jpeg = ByteBuffer.allocateDirect(bytes.length);
+        jpeg.put(bytes);
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    @Test
+    public void jpegToTensorAllocatesNothingPerFrame() {
+        for (int i = 0; i < WARMUP_FRAMES; ++i) {
+            jpeg.rewind();
+            preprocessor.preprocessJpegToTensor(jpeg);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < FRAMES; ++i) {
+            jpeg.rewind();
+            preprocessor.preprocessJpegToTensor(jpeg);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals("Objects allocated over " + FRAMES + " frames",
+                0, Debug.getThreadAllocCount());
+    }
+
+    @Test
+    public void subsampledJpegToTensorAllocatesNothingPerFrame() {
+        preprocessor.setJpegDecodeMode(ImagePreprocessor.JpegDecodeMode.SUBSAMPLED);
+        jpegToTensorAllocatesNothingPerFrame();
+    }
+
+    @Test
+    public void corruptJpegIsDropped() {
+        jpeg.rewind();
+        ByteBuffer corrupt = ByteBuffer.allocateDirect(jpeg.remaining() / 2);
+        jpeg.limit(corrupt.capacity());
+        corrupt.put(jpeg).flip();
+        jpeg.clear();
+        for (int i = 0; i < 4; ++i) {
+            corrupt.put(i, (byte) 0);
+        }
+        preprocessor.setJpegDecodeMode(ImagePreprocessor.JpegDecodeMode.SUBSAMPLED);
+        assertNull(preprocessor.preprocessJpegToTensor(corrupt));
+    }
+
+    @Test
+    public void jpegToBitmapAllocatesNothingPerFrame() {
+        jpeg.rewind();
+        Bitmap first = preprocessor.preprocessJpeg(jpeg);
+        for (int i = 0; i < WARMUP_FRAMES; ++i) {
+            jpeg.rewind();
+            preprocessor.preprocessJpeg(jpeg);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        Bitmap last = null;
+        for (int i = 0; i < FRAMES; ++i) {
+            jpeg.rewind();
+            last = preprocessor.preprocessJpeg(jpeg);
+        }
+        Debug.stopAllocCounting();
+
+        assertSame(first, last);
+        assertEquals("Objects allocated over " + FRAMES + " frames",
+                0, Debug.getThreadAllocCount());
+    }
+}
@@ -0,0 +1,42 @@
+package com.inbiaf.android.chillbot;
+
+import android.media.Image;
+
+/**
+ * Frame backed by a camera {@link Image}; releasing it closes the image so the reader can reuse
+ * its buffer.
+ */
+public class CameraFrame implements Frame {
+
+    private final Image image;
+    private final long timestampNanos;
+
+    public CameraFrame(Image image, long timestampNanos) {
+        this.image = image;
+        this.timestampNanos = timestampNanos;
+    }
+
+    public Image getImage() {
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    @Override
+    public void release() {
+        image.close();
+    }
+}
@@ -0,0 +1,73 @@
+package com.inbiaf.android.chillbot;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+
+/**
+ * {@link FrameSource} backed by the device camera through {@link CameraHandler}.
+ */
+public class CameraFrameSource implements FrameSource {
+
+    private final Context context;
+    private final int width;
+    private final int height;
+    private final Handler cameraHandler;
+    private final CameraHandler camera = CameraHandler.getInstance();
+
+    /**
+     * @param imageFormat       format delivered by the camera, see
+     *                          {@link CameraHandler#setImageFormat(int)}
+     * @param persistentSession see {@link CameraHandler#setPersistentSession(boolean)}
+     * @param cameraHandler     thread running the camera callbacks
+     */
+    public CameraFrameSource(Context context, int width, int height, int imageFormat,
+                             boolean persistentSession, Handler cameraHandler) {
+        this.context = context;
+        this.width = width;
+        this.height = height;
+        this.cameraHandler = cameraHandler;
+        camera.setImageFormat(imageFormat);
+        camera.setPersistentSession(persistentSession);
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        camera.initializeCamera(context, width, height, cameraHandler,
+                new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader imageReader) {
+                        Image image = imageReader.acquireNextImage();
+                        if (image != null) {
+                            listener.onFrame(new CameraFrame(image, System.nanoTime()));
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void requestFrame() {
+        camera.takePicture();
+    }
+
+    @Override
+    public void startStreaming() {
+        camera.startStreaming();
+    }
+
+    @Override
+    public void stopStreaming() {
+        camera.stopStreaming();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return camera.isStreaming();
+    }
+
+    @Override
+    public void stop() {
+        camera.shutDown();
+    }
+}
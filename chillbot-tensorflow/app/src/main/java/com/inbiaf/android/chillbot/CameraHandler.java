@@ -12,17 +12,24 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.util.Log;
 import android.util.Size;
 
+import java.util.Arrays;
 import java.util.Collections;
 
 public class CameraHandler {
     private static final String TAG = CameraHandler.class.getSimpleName();
 
-    private static final int MAX_IMAGES = 1;
+    /**
+     * Enough images for streaming: one waiting in the hand-off slot, one being classified and
+     * one being filled by the camera.
+     */
+    private static final int MAX_IMAGES = 3;
+    private static final int PREVIEW_MAX_IMAGES = 2;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private boolean initialized;
@@ -32,6 +39,43 @@ public class CameraHandler {
      */
     private ImageReader mImageReader;
 
+    /**
+     * Keep the capture session open between pictures, with a repeating preview request running
+     * so that auto-exposure and auto-white-balance stay converged.
+     */
+    private boolean mPersistentSession;
+
+    /**
+     * Small {@link ImageReader} that sinks the repeating preview frames in persistent mode.
+     */
+    private ImageReader mPreviewReader;
+
+    /**
+     * Still capture request, built once per persistent session.
+     */
+    private CaptureRequest mStillCaptureRequest;
+
+    /**
+     * A picture was requested before the persistent session finished configuring.
+     */
+    private boolean mCapturePending;
+
+    /**
+     * A repeating request is feeding every frame into the image listener.
+     */
+    private volatile boolean mStreaming;
+
+    /**
+     * Thread that runs the camera callbacks and every camera operation. Public entry points
+     * post onto it so the session state is only touched from one thread.
+     */
+    private Handler mBackgroundHandler;
+
+    /**
+     * Pixel format of the still capture {@link ImageReader}.
+     */
+    private int mImageFormat = ImageFormat.JPEG;
+
     // Lazy-loaded singleton, so only one instance of the camera is created.
     private CameraHandler() {
     }
@@ -44,6 +88,36 @@ public class CameraHandler {
         return InstanceHolder.mCamera;
     }
 
+    /**
+     * Select the pixel format delivered to the image listener, either {@link ImageFormat#JPEG}
+     * (the default) or {@link ImageFormat#YUV_420_888}, which skips the JPEG encode on the
+     * sensor side and the decode on the CPU. Must be called before the camera is initialized.
+     */
+    public void setImageFormat(int imageFormat) {
+        if (initialized) {
+            throw new IllegalStateException(
+                    "Image format must be set before the camera is initialized");
+        }
+        if (imageFormat != ImageFormat.JPEG && imageFormat != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported image format " + imageFormat);
+        }
+        mImageFormat = imageFormat;
+    }
+
+    /**
+     * Keep a single capture session open for the lifetime of the camera instead of creating one
+     * per picture. A low-cost repeating preview keeps AE/AWB converged, so {@link #takePicture()}
+     * only has to issue the still request. Must be called before
+     * {@link #initializeCamera(Context, int, int, Handler, ImageReader.OnImageAvailableListener)}.
+     */
+    public void setPersistentSession(boolean persistentSession) {
+        if (initialized) {
+            throw new IllegalStateException(
+                    "Capture session mode must be set before the camera is initialized");
+        }
+        mPersistentSession = persistentSession;
+    }
+
     /**
      * Initialize the camera device
      */
@@ -56,6 +130,7 @@ public class CameraHandler {
                     "CameraHandler is already initialized or is initializing");
         }
         initialized = true;
+        mBackgroundHandler = backgroundHandler;
 
         // Discover the camera instance
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
@@ -72,10 +147,19 @@ public class CameraHandler {
         Log.d(TAG, "Using camera id " + camIds[0]);
 
         // Initialize the image processor
-        mImageReader = ImageReader.newInstance(previewWidth, previewHeight, ImageFormat.JPEG,
+        mImageReader = ImageReader.newInstance(previewWidth, previewHeight, mImageFormat,
                 MAX_IMAGES);
         mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
 
+        if (mPersistentSession) {
+            Size previewSize = chooseSmallestSize(manager, camIds[0], ImageFormat.YUV_420_888,
+                    previewWidth, previewHeight);
+            mPreviewReader = ImageReader.newInstance(previewSize.getWidth(),
+                    previewSize.getHeight(), ImageFormat.YUV_420_888, PREVIEW_MAX_IMAGES);
+            mPreviewReader.setOnImageAvailableListener(mPreviewDiscardListener, backgroundHandler);
+            Log.d(TAG, "Persistent session preview size " + previewSize);
+        }
+
         // Open the camera resource
         try {
             manager.openCamera(camIds[0], mStateCallback, backgroundHandler);
@@ -84,36 +168,214 @@ public class CameraHandler {
         }
     }
 
+    /**
+     * Run a camera operation on the camera thread, or inline if there is none.
+     */
+    private void runOnCameraThread(Runnable operation) {
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.post(operation);
+        } else {
+            operation.run();
+        }
+    }
+
     /**
      * Begin a still image capture
      */
     public void takePicture() {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                captureStill();
+            }
+        });
+    }
+
+    private void captureStill() {
         if (mCameraDevice == null) {
             Log.w(TAG, "Cannot capture image. Camera not initialized.");
             return;
         }
+        if (mStreaming) {
+            Log.d(TAG, "Streaming, the next frame is already on its way.");
+            return;
+        }
+        if (mPersistentSession) {
+            if (mCaptureSession != null) {
+                triggerImageCapture();
+            } else {
+                // The session is still being configured; capture as soon as it is ready.
+                mCapturePending = true;
+            }
+            return;
+        }
         // Create a CameraCaptureSession for capturing still images.
         try {
             mCameraDevice.createCaptureSession(
                     Collections.singletonList(mImageReader.getSurface()),
                     mSessionCallback,
-                    null);
+                    mBackgroundHandler);
         } catch (CameraAccessException cae) {
             Log.e(TAG, "Cannot create camera capture session", cae);
         }
     }
 
+    /**
+     * Start delivering a continuous stream of frames to the image listener, instead of one
+     * frame per {@link #takePicture()}.
+     */
+    public void startStreaming() {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                beginStreaming();
+            }
+        });
+    }
+
+    private void beginStreaming() {
+        if (mCameraDevice == null) {
+            Log.w(TAG, "Cannot start streaming. Camera not initialized.");
+            return;
+        }
+        if (mStreaming) {
+            return;
+        }
+        mStreaming = true;
+        if (mCaptureSession != null) {
+            startStreamingRequest();
+        } else if (!mPersistentSession) {
+            try {
+                mCameraDevice.createCaptureSession(
+                        Collections.singletonList(mImageReader.getSurface()),
+                        mSessionCallback,
+                        mBackgroundHandler);
+            } catch (CameraAccessException cae) {
+                Log.e(TAG, "Cannot create camera capture session", cae);
+                mStreaming = false;
+            }
+        }
+        // A persistent session that is still configuring starts streaming once it is ready.
+    }
+
+    /**
+     * Stop the frame stream. A persistent session goes back to its preview, otherwise the
+     * session is closed.
+     */
+    public void stopStreaming() {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                endStreaming();
+            }
+        });
+    }
+
+    private void endStreaming() {
+        if (!mStreaming) {
+            return;
+        }
+        mStreaming = false;
+        if (mCaptureSession == null) {
+            return;
+        }
+        if (mPersistentSession) {
+            startPreview();
+        } else {
+            closeCaptureSession();
+        }
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    private void startStreamingRequest() {
+        try {
+            final CaptureRequest.Builder streamBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            streamBuilder.addTarget(mImageReader.getSurface());
+            streamBuilder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            streamBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            streamBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
+                    CaptureRequest.CONTROL_AWB_MODE_AUTO);
+            mCaptureSession.setRepeatingRequest(streamBuilder.build(), null, mBackgroundHandler);
+            Log.d(TAG, "Streaming started.");
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot start the streaming request", cae);
+        }
+    }
+
+    /**
+     * Create the long-lived session used in persistent mode, with both the still and the
+     * preview outputs configured up front.
+     */
+    private void createPersistentSession() {
+        try {
+            mCameraDevice.createCaptureSession(
+                    Arrays.asList(mImageReader.getSurface(), mPreviewReader.getSurface()),
+                    mSessionCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot create persistent capture session", cae);
+        }
+    }
+
+    /**
+     * Start the repeating preview request that keeps 3A converged.
+     */
+    private void startPreview() {
+        try {
+            final CaptureRequest.Builder previewBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            previewBuilder.addTarget(mPreviewReader.getSurface());
+            previewBuilder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            previewBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
+                    CaptureRequest.CONTROL_AWB_MODE_AUTO);
+            mCaptureSession.setRepeatingRequest(previewBuilder.build(), null, mBackgroundHandler);
+            Log.d(TAG, "Persistent session preview started.");
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot start the preview request", cae);
+        }
+    }
+
+    /**
+     * Build the still request once, so a picture in a persistent session only costs a single
+     * frame.
+     */
+    private void prepareStillCaptureRequest() {
+        try {
+            mStillCaptureRequest = buildStillCaptureRequest();
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Cannot create the still capture request", cae);
+        }
+    }
+
+    private CaptureRequest buildStillCaptureRequest() throws CameraAccessException {
+        final CaptureRequest.Builder captureBuilder =
+                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mImageReader.getSurface());
+        captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+        if (mPersistentSession) {
+            captureBuilder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+            captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE,
+                    CaptureRequest.CONTROL_AWB_MODE_AUTO);
+        }
+        return captureBuilder.build();
+    }
+
     /**
      * Execute a new capture request within the active session
      */
     private void triggerImageCapture() {
         try {
-            final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
-            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            Log.d(TAG, "Capture request created.");
-            mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
+            CaptureRequest request = mStillCaptureRequest;
+            if (request == null) {
+                request = buildStillCaptureRequest();
+                Log.d(TAG, "Capture request created.");
+            }
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException cae) {
             Log.e(TAG, "Cannot trigger a capture request");
         }
@@ -128,23 +390,64 @@ public class CameraHandler {
             }
             mCaptureSession = null;
         }
+        mStillCaptureRequest = null;
+        mCapturePending = false;
     }
 
     /**
      * Close the camera resources
      */
     public void shutDown() {
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+    }
+
+    private void closeCamera() {
         try {
+            mStreaming = false;
             closeCaptureSession();
             if (mCameraDevice != null) {
                 mCameraDevice.close();
             }
             mImageReader.close();
+            if (mPreviewReader != null) {
+                mPreviewReader.close();
+                mPreviewReader = null;
+            }
         } finally {
             initialized = false;
         }
     }
 
+    /**
+     * Find the smallest output size for the given format, falling back to the requested capture
+     * size when the camera characteristics are not available.
+     */
+    private static Size chooseSmallestSize(CameraManager manager, String cameraId, int format,
+                                           int fallbackWidth, int fallbackHeight) {
+        Size smallest = new Size(fallbackWidth, fallbackHeight);
+        try {
+            StreamConfigurationMap configs = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size[] sizes = configs == null ? null : configs.getOutputSizes(format);
+            if (sizes != null) {
+                for (Size s : sizes) {
+                    if (s.getWidth() * s.getHeight()
+                            < smallest.getWidth() * smallest.getHeight()) {
+                        smallest = s;
+                    }
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Cannot read output sizes, using the capture size for preview", e);
+        }
+        return smallest;
+    }
+
     /**
      * Helpful debugging method:  Dump all supported camera formats to log.  You don't need to run
      * this for normal operation, but it's very helpful when porting this code to different
@@ -192,6 +495,9 @@ public class CameraHandler {
         public void onOpened(CameraDevice cameraDevice) {
             Log.d(TAG, "Opened camera.");
             mCameraDevice = cameraDevice;
+            if (mPersistentSession) {
+                createPersistentSession();
+            }
         }
 
         @Override
@@ -228,7 +534,24 @@ public class CameraHandler {
                     }
                     // When the session is ready, we start capture.
                     mCaptureSession = cameraCaptureSession;
-                    triggerImageCapture();
+                    if (!mPersistentSession) {
+                        if (mStreaming) {
+                            startStreamingRequest();
+                        } else {
+                            triggerImageCapture();
+                        }
+                        return;
+                    }
+                    if (mStreaming) {
+                        startStreamingRequest();
+                    } else {
+                        startPreview();
+                    }
+                    prepareStillCaptureRequest();
+                    if (mCapturePending) {
+                        mCapturePending = false;
+                        triggerImageCapture();
+                    }
                 }
 
                 @Override
@@ -253,9 +576,36 @@ public class CameraHandler {
                 public void onCaptureCompleted(CameraCaptureSession session,
                                                CaptureRequest request,
                                                TotalCaptureResult result) {
+                    if (mPersistentSession) {
+                        // Leave the session and its preview running for the next picture.
+                        Log.d(TAG, "Capture completed");
+                        return;
+                    }
+                    if (mStreaming && session == mCaptureSession) {
+                        // Streaming started on this session while the still was in flight;
+                        // endStreaming() closes it once the stream is stopped.
+                        Log.d(TAG, "Capture completed, session kept for streaming");
+                        return;
+                    }
                     session.close();
-                    mCaptureSession = null;
+                    if (session == mCaptureSession) {
+                        mCaptureSession = null;
+                    }
                     Log.d(TAG, "CaptureSession closed");
                 }
             };
+
+    /**
+     * Drops preview frames as soon as they arrive; the preview only exists to keep 3A converged.
+     */
+    private final ImageReader.OnImageAvailableListener mPreviewDiscardListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader imageReader) {
+                    Image image = imageReader.acquireLatestImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                }
+            };
 }
\ No newline at end of file
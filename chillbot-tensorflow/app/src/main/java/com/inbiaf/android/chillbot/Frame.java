@@ -0,0 +1,22 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * A captured frame travelling through the {@link FramePipeline}, independent of where it came
+ * from. Whoever ends up holding a frame must {@link #release()} it exactly once.
+ */
+public interface Frame {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Capture time on the {@link System#nanoTime()} clock.
+     */
+    long getTimestampNanos();
+
+    /**
+     * Give the frame's memory back to its source.
+     */
+    void release();
+}
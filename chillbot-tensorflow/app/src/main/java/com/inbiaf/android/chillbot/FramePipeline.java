@@ -0,0 +1,330 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged capture -> preprocess -> infer -> publish pipeline with one worker thread per stage.
+ * <p>
+ * Captured frames enter through a {@link LatestFrameSlot}, so the camera never waits on the
+ * pipeline and stale frames are dropped. The preprocess stage writes each frame into one of a
+ * fixed pool of model input buffers and hands it to the inference stage through a bounded
+ * queue, so preprocessing of frame N+1 overlaps inference of frame N. Results go to the publish
+ * stage through another bounded queue, together with the capture time of their frame. Nothing
+ * is allocated per frame by the pipeline itself.
+ * <p>
+ * A stage that throws on one frame skips it and carries on with the next: the frame and its
+ * input buffer are given back and the failure goes to the {@link ErrorListener}.
+ *
+ * @param <F> captured frame type
+ * @param <R> inference result type
+ */
+public class FramePipeline<F extends Frame, R> {
+
+    /**
+     * Converts a frame into the model input. The preprocessor owns the frame and must release
+     * it once the input buffer is written. If it throws, it must not have released the frame,
+     * which the pipeline then releases.
+     */
+    public interface Preprocessor<F> {
+        /**
+         * @return false to drop the frame without running inference on it
+         */
+        boolean preprocess(F frame, ByteBuffer input);
+    }
+
+    /**
+     * Runs the model on a prepared input buffer.
+     */
+    public interface Inference<R> {
+        /**
+         * @return the result, or null if there is nothing to publish
+         */
+        R infer(ByteBuffer input);
+    }
+
+    /**
+     * Delivers results, for example to the UI and the database.
+     */
+    public interface Publisher<R> {
+        /**
+         * @param timestampNanos capture time of the frame the result came from, see
+         *                       {@link Frame#getTimestampNanos()}
+         */
+        void publish(R result, long timestampNanos);
+    }
+
+    /**
+     * Told about every frame a stage failed on. Called on the thread of that stage.
+     */
+    public interface ErrorListener {
+        /**
+         * @param stage "preprocess", "inference" or "publish"
+         */
+        void onError(String stage, RuntimeException error);
+    }
+
+    /* A model input buffer and the capture time of the frame written into it. */
+    private static class Input {
+        final ByteBuffer buffer;
+        long timestampNanos;
+
+        Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /* A result waiting to be published and the capture time of its frame. */
+    private static class Output<R> {
+        R result;
+        long timestampNanos;
+    }
+
+    private final LatestFrameSlot<F> captureSlot;
+    private final BlockingQueue<Input> freeInputs;
+    private final BlockingQueue<Input> readyInputs;
+    private final BlockingQueue<Output<R>> freeOutputs;
+    private final BlockingQueue<Output<R>> results;
+
+    private final Preprocessor<F> preprocessor;
+    private final Inference<R> inference;
+    private final Publisher<R> publisher;
+    private final LatestFrameSlot.Recycler<F> recycler;
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private volatile ErrorListener errorListener;
+
+    private Thread preprocessThread;
+    private Thread inferenceThread;
+    private Thread publishThread;
+    private volatile boolean running;
+
+    /**
+     * @param inputSize     size in bytes of one model input buffer
+     * @param queueCapacity capacity of the hand-off queues between stages
+     * @param recycler      releases frames dropped before they were preprocessed
+     */
+    public FramePipeline(Preprocessor<F> preprocessor, Inference<R> inference,
+                         Publisher<R> publisher, LatestFrameSlot.Recycler<F> recycler,
+                         int inputSize, int queueCapacity) {
+        this.preprocessor = preprocessor;
+        this.inference = inference;
+        this.publisher = publisher;
+        this.recycler = recycler;
+        this.captureSlot = new LatestFrameSlot<>(recycler);
+        this.readyInputs = new ArrayBlockingQueue<>(queueCapacity);
+        this.results = new ArrayBlockingQueue<>(queueCapacity);
+
+        // One buffer being filled, one being inferred on, and the rest waiting in between.
+        // As many result holders, which is more than the results queue plus the ones in hand.
+        final int bufferCount = queueCapacity + 2;
+        this.freeInputs = new ArrayBlockingQueue<>(bufferCount);
+        this.freeOutputs = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i) {
+            ByteBuffer input = ByteBuffer.allocateDirect(inputSize);
+            input.order(ByteOrder.nativeOrder());
+            freeInputs.add(new Input(input));
+            freeOutputs.add(new Output<R>());
+        }
+    }
+
+    /**
+     * Where stage failures are reported; null to only count them.
+     */
+    public void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Start the stage workers.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        preprocessThread = new Thread(preprocessLoop, "pipeline-preprocess");
+        inferenceThread = new Thread(inferenceLoop, "pipeline-inference");
+        publishThread = new Thread(publishLoop, "pipeline-publish");
+        preprocessThread.start();
+        inferenceThread.start();
+        publishThread.start();
+    }
+
+    /**
+     * Stop the stage workers and release any frame still waiting to be preprocessed. Frames
+     * submitted afterwards are released immediately.
+     */
+    public synchronized void stop() {
+        running = false;
+        captureSlot.close();
+        if (preprocessThread != null) {
+            preprocessThread.interrupt();
+            inferenceThread.interrupt();
+            publishThread.interrupt();
+        }
+    }
+
+    /**
+     * Capture stage entry point. Never blocks; if the previous frame has not been picked up yet
+     * it is dropped in favour of this one.
+     *
+     * @return false if the pipeline is stopped and the frame was released
+     */
+    public boolean submit(F frame) {
+        return captureSlot.offer(frame);
+    }
+
+    /**
+     * Frames waiting to be preprocessed, either 0 or 1.
+     */
+    public int getPreprocessQueueDepth() {
+        return captureSlot.size();
+    }
+
+    /**
+     * Prepared inputs waiting for inference.
+     */
+    public int getInferenceQueueDepth() {
+        return readyInputs.size();
+    }
+
+    /**
+     * Results waiting to be published.
+     */
+    public int getPublishQueueDepth() {
+        return results.size();
+    }
+
+    /**
+     * Frames dropped because a newer one arrived before preprocessing started.
+     */
+    public long getDroppedFrameCount() {
+        return captureSlot.getDroppedCount();
+    }
+
+    /**
+     * Frames submitted since the pipeline was created.
+     */
+    public long getSubmittedFrameCount() {
+        return captureSlot.getOfferedCount();
+    }
+
+    /**
+     * Frames that made it through inference.
+     */
+    public long getProcessedFrameCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * Frames or results a stage threw on and skipped.
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    private void failed(String stage, RuntimeException error) {
+        errorCount.incrementAndGet();
+        final ErrorListener listener = errorListener;
+        if (listener != null) {
+            listener.onError(stage, error);
+        }
+    }
+
+    private final Runnable preprocessLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                F frame;
+                while (running && (frame = captureSlot.take()) != null) {
+                    final Input input;
+                    try {
+                        input = freeInputs.take();
+                    } catch (InterruptedException e) {
+                        recycler.recycle(frame);
+                        throw e;
+                    }
+                    // Read before the preprocessor releases the frame.
+                    input.timestampNanos = frame.getTimestampNanos();
+                    input.buffer.rewind();
+                    boolean prepared = false;
+                    try {
+                        prepared = preprocessor.preprocess(frame, input.buffer);
+                    } catch (RuntimeException e) {
+                        recycler.recycle(frame);
+                        failed("preprocess", e);
+                    }
+                    if (prepared) {
+                        input.buffer.rewind();
+                        readyInputs.put(input);
+                    } else {
+                        freeInputs.put(input);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private final Runnable inferenceLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    final Input input = readyInputs.take();
+                    final long timestampNanos = input.timestampNanos;
+                    R result = null;
+                    boolean inferred = false;
+                    try {
+                        result = inference.infer(input.buffer);
+                        inferred = true;
+                    } catch (RuntimeException e) {
+                        failed("inference", e);
+                    }
+                    freeInputs.put(input);
+                    if (!inferred) {
+                        continue;
+                    }
+                    processedCount.incrementAndGet();
+                    if (result != null) {
+                        final Output<R> output = freeOutputs.take();
+                        output.result = result;
+                        output.timestampNanos = timestampNanos;
+                        results.put(output);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    private final Runnable publishLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    final Output<R> output = results.take();
+                    final R result = output.result;
+                    final long timestampNanos = output.timestampNanos;
+                    output.result = null;
+                    freeOutputs.put(output);
+                    try {
+                        publisher.publish(result, timestampNanos);
+                    } catch (RuntimeException e) {
+                        failed("publish", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+}
@@ -0,0 +1,45 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * Where frames enter the system: the camera on the device, or a recording replayed at a fixed
+ * rate or as fast as possible for headless throughput and latency runs.
+ */
+public interface FrameSource {
+
+    /**
+     * Receives frames from the source. Frames are delivered on the source's own thread and the
+     * listener takes ownership of each one.
+     */
+    interface Listener {
+        void onFrame(Frame frame);
+
+        /**
+         * The source has no more frames to deliver.
+         */
+        void onEndOfStream();
+    }
+
+    /**
+     * Open the source. Nothing is delivered until a frame is requested or streaming starts.
+     */
+    void start(Listener listener);
+
+    /**
+     * Deliver a single frame.
+     */
+    void requestFrame();
+
+    /**
+     * Deliver frames continuously until {@link #stopStreaming()}.
+     */
+    void startStreaming();
+
+    void stopStreaming();
+
+    boolean isStreaming();
+
+    /**
+     * Close the source and release its resources.
+     */
+    void stop();
+}
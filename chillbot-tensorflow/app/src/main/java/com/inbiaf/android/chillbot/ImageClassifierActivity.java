@@ -1,9 +1,12 @@
 package com.inbiaf.android.chillbot;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.media.ImageReader;
+import android.graphics.ImageFormat;
 import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.LoginFilter;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -11,20 +14,31 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.TextView;
-import android.widget.Toast;
 
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import com.inbiaf.android.chillbot.classifier.ClassifierPool;
 import com.inbiaf.android.chillbot.classifier.ImageClassifier;
+import com.inbiaf.android.chillbot.classifier.InterpreterTuner;
+import com.inbiaf.android.chillbot.classifier.ModelRegistry;
+import com.inbiaf.android.chillbot.classifier.ModelSource;
 import com.inbiaf.android.chillbot.classifier.Recognition;
-import com.inbiaf.android.chillbot.classifier.TensorFlowHelper;
-
-import org.tensorflow.lite.Interpreter;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class ImageClassifierActivity extends Activity {
     private static final String TAG = "ImageClassifierActivity";
@@ -34,6 +48,121 @@ public class ImageClassifierActivity extends Activity {
      */
     private static final int PREVIEW_IMAGE_WIDTH = 640;
     private static final int PREVIEW_IMAGE_HEIGHT = 480;
+    /**
+     * Keep the camera session and a 3A preview running between pictures, so a scan only costs
+     * a single still frame.
+     */
+    private static final boolean PERSISTENT_CAPTURE_SESSION = true;
+    /**
+     * Capture YUV frames and convert them straight into the model input, skipping the JPEG
+     * encode/decode.
+     */
+    private static final int CAPTURE_FORMAT = ImageFormat.YUV_420_888;
+    /**
+     * For JPEG captures, decode frames subsampled close to the model size instead of at full
+     * resolution.
+     */
+    private static final ImagePreprocessor.JpegDecodeMode JPEG_DECODE_MODE =
+            ImagePreprocessor.JpegDecodeMode.SUBSAMPLED;
+    /**
+     * Capacity of the hand-off queues between pipeline stages.
+     */
+    private static final int PIPELINE_QUEUE_CAPACITY = 2;
+    /**
+     * If this directory exists in the app's files, its raw RGB recordings of
+     * PREVIEW_IMAGE_WIDTH x PREVIEW_IMAGE_HEIGHT frames are replayed instead of using the camera.
+     */
+    private static final String REPLAY_DIRECTORY = "replay";
+    /**
+     * Rate at which recordings are replayed while streaming; 0 replays as fast as possible.
+     */
+    private static final float REPLAY_FPS = 15;
+    /**
+     * Classify the whole frame in overlapping windows, batched into one interpreter call,
+     * instead of only its center square.
+     */
+    private static final boolean TILED_SCAN = true;
+    /**
+     * Side of a tile window and minimum overlap between windows, in camera pixels. On a 640x480
+     * frame this gives 3x2 windows, each sampled down to the model input size.
+     */
+    private static final int TILE_WINDOW_SIZE = 320;
+    private static final int TILE_MIN_OVERLAP = 64;
+    /**
+     * Tile preparation plus inference should fit in this time on the board.
+     */
+    private static final long TILE_SCAN_BUDGET_MS = 1000;
+    /**
+     * Run one inference on a synthetic frame during startup, so the first real scan does not
+     * pay for interpreter setup.
+     */
+    private static final boolean WARM_UP_INFERENCE = true;
+    /**
+     * A scan streams frames until the smoothed inventory is stable for SCAN_CONVERGENCE_FRAMES
+     * frames, changing less than SCAN_CONVERGENCE_THRESHOLD, or SCAN_MAX_FRAMES were seen. With
+     * a maximum of 1 a scan is a single still picture.
+     */
+    private static final int SCAN_MAX_FRAMES = 15;
+    private static final float SCAN_FILTER_FACTOR = 0.5f;
+    private static final long SCAN_FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 15;
+    private static final float SCAN_CONVERGENCE_THRESHOLD = 0.05f;
+    private static final int SCAN_CONVERGENCE_FRAMES = 2;
+    /**
+     * Continuous streaming publishes every frame through a low pass filter over the presence of
+     * each label, STREAM_FILTER_STAGES stages stepping STREAM_FILTER_FACTOR per
+     * SCAN_FRAME_INTERVAL_NANOS, so one misclassified frame does not flip the inventory.
+     */
+    private static final int STREAM_FILTER_STAGES = 3;
+    private static final float STREAM_FILTER_FACTOR = 0.4f;
+    /**
+     * Scan requests within this time of the last completed scan get its result without a new
+     * scan.
+     */
+    private static final long SCAN_FRESHNESS_MS = 5000;
+    /**
+     * A scan without a result after this long is given up, so a lost frame or a camera error
+     * does not leave every later request waiting on it.
+     */
+    private static final long SCAN_TIMEOUT_MS = 10000;
+    /**
+     * A model and labels in this directory of the app's files replace the ones in the assets,
+     * named like ImageClassifier.MODEL_PATH and ImageClassifier.LABEL_PATH. A model moved or
+     * written there while the app runs is swapped in without stopping the pipeline; put the
+     * labels there first, and move the model in under its final name rather than writing it
+     * in place.
+     */
+    private static final String MODEL_UPDATE_DIRECTORY = "model";
+    /**
+     * A changed inventory is written to the database once it held for this long, so flapping
+     * results while streaming are not written at every flip.
+     */
+    private static final long PUBLISH_DEBOUNCE_MS = 500;
+    /**
+     * Inventory writes are kept in this file of the app's files until the database acknowledges
+     * them, and replayed when it is reachable again, also after a reboot.
+     */
+    private static final String OUTBOX_FILE = "outbox";
+    private static final int OUTBOX_CAPACITY = 64 * 1024;
+    /**
+     * Every classification result is recorded in this file of the app's files, keeping the
+     * last HISTORY_CAPACITY of them: about 16 MB with a few labels, or 19 hours of continuous
+     * streaming at 15 fps.
+     */
+    private static final String HISTORY_FILE = "history";
+    private static final int HISTORY_CAPACITY = 1 << 20;
+    /**
+     * Port of the local inventory endpoint, see InventoryServer. A request asking for a scan
+     * waits at most LOCAL_SCAN_TIMEOUT_MS for its result.
+     */
+    private static final int LOCAL_SERVER_PORT = 8080;
+    private static final long LOCAL_SCAN_TIMEOUT_MS = 5000;
+    /**
+     * Reuse the result of a recent frame that looks the same, up to RESULT_CACHE_MAX_DISTANCE
+     * differing bits of its 64 bit hash per tile, for at most RESULT_CACHE_MAX_AGE_MS.
+     */
+    private static final int RESULT_CACHE_SIZE = 8;
+    private static final int RESULT_CACHE_MAX_DISTANCE = 4;
+    private static final long RESULT_CACHE_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(10);
     /**
      * Image dimensions required by TF model
      */
@@ -44,123 +173,750 @@ public class ImageClassifierActivity extends Activity {
      */
     private static final int DIM_BATCH_SIZE = 1;
     private static final int DIM_PIXEL_SIZE = 3;
-    /**
-     * TF model asset files
-     */
-    private static final String LABELS_FILE = "labels.txt";
-    private static final String MODEL_FILE = "chill-bot.lite";
-
-    private boolean mProcessing;
 
     private ImageView mImage;
     private TextView mResultText;
     private TextView cameraButton;
 
-    private Interpreter mTensorFlowLite;
-    private List<String> mLables;
-
-    private ImageClassifier classifier;
+    /**
+     * One classifier context per core, so the tiles of a scan are classified in parallel.
+     */
+    private volatile ClassifierPool classifier;
 
-    private CameraHandler mCameraHandler;
+    private volatile FrameSource mFrameSource;
     private ImagePreprocessor mImagePreprocessor;
+    private TileLayout mTileLayout;
+    private TiledPreprocessor mTiledPreprocessor;
+    private ExecutorService mTileExecutor;
+    private PerceptualHash mFrameHash;
+    private long[] mFrameHashes;
+    private ResultCache<Inventory> mResultCache;
+
+    /**
+     * Capture, preprocess, inference and publish stages, each on its own thread. Built once
+     * startup is complete; frames arriving before that are dropped.
+     */
+    private volatile FramePipeline<Frame, Inventory> mPipeline;
+    private volatile HandlerThread mCameraThread;
+    /**
+     * The scan in progress, if any. Frames feed it until it ends.
+     */
+    private volatile ScanSession mScan;
+    /**
+     * Lets only one scan run at a time; button presses during a scan join it.
+     */
+    private final ScanCoordinator<Inventory> mScans = new ScanCoordinator<>(
+            new ScanCoordinator.Scanner() {
+                @Override
+                public void startScan() {
+                    loadPhoto();
+                }
+            }, SCAN_FRESHNESS_MS, SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    private final Handler mMainHandler = new Handler();
+    private final Runnable mScanDeadline = new Runnable() {
+        @Override
+        public void run() {
+            if (mScans.expireOverdue()) {
+                abandonScan();
+            }
+        }
+    };
+    private final ScanCoordinator.Listener<Inventory> mShowScanResult =
+            new ScanCoordinator.Listener<Inventory>() {
+                @Override
+                public void onScanResult(Inventory result) {
+                    if (result != null) {
+                        showInventory(result);
+                    }
+                }
+            };
+    /**
+     * Continuous classification toggled by a long press, publishing every frame.
+     */
+    private volatile boolean mContinuousStreaming;
+    /**
+     * Smooths the continuous stream; replaced each time streaming starts, and only used on the
+     * publish stage of the pipeline.
+     */
+    private volatile InventoryFilter mStreamFilter;
 
     /**
-     * Initialize the classifier that will be used to process images.
+     * Runs model, label, camera and Firebase initialization in parallel behind a readiness
+     * gate, and measures time to first answer.
      */
-    private void initClassifier() {
+    private StartupCoordinator mStartup;
+    private volatile ModelRegistry.Handle<MappedByteBuffer> mModelHandle;
+    private volatile ModelRegistry.Handle<List<String>> mLabelsHandle;
+    private ModelSource mModelSource;
+    /**
+     * Watches MODEL_UPDATE_DIRECTORY and swaps updated models in on mModelSwapExecutor.
+     */
+    private FileObserver mModelObserver;
+    private ExecutorService mModelSwapExecutor;
+    private volatile DatabaseReference mDrinksReference;
+    /**
+     * Sole writer of the inventory to the database, sending only changed labels.
+     */
+    private InventoryPublisher mPublisher;
+    /**
+     * Inventory writes not acknowledged by the database yet.
+     */
+    private volatile InventoryOutbox mOutbox;
+    private DatabaseReference mConnectedReference;
+    private ValueEventListener mConnectedListener;
+    private volatile ScanHistory mHistory;
+    /**
+     * Serves the last published inventory to the local network.
+     */
+    private volatile InventoryServer mLocalServer;
+
+    /**
+     * Identify what is in a frame that was already converted into the model input format.
+     * Runs on the inference stage of the pipeline.
+     */
+    private Inventory doRecognize(ByteBuffer input) {
+        if (classifier == null) {
+            Log.w(TAG, "Uninitialized Classifier, dropping frame.");
+            return null;
+        }
+        final int inputCount = mTiledPreprocessor == null ? 1 : mTiledPreprocessor.getTileCount();
+        final long now = System.nanoTime();
+        mFrameHash.hash(input, inputCount, mFrameHashes);
+        final Inventory cached = mResultCache.get(mFrameHashes, inputCount, now);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Inventory inventory;
+        final long start = SystemClock.uptimeMillis();
         try {
-            mTensorFlowLite = new Interpreter(TensorFlowHelper.loadModelFile(this, MODEL_FILE));
-            mLables = TensorFlowHelper.readLabels(this, LABELS_FILE);
-        } catch (IOException e) {
-            Log.w(TAG, "Unable to initialize TensorFlow Lite.", e);
+            if (mTiledPreprocessor == null) {
+                inventory = classifier.classifyFrame(input);
+            } else {
+                inventory = classifier.classifyTiles(input, inputCount);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (mTiledPreprocessor != null) {
+            final long scanMs = SystemClock.uptimeMillis() - start
+                    + TimeUnit.NANOSECONDS.toMillis(mTiledPreprocessor.getLastPrepareNanos());
+            if (scanMs > TILE_SCAN_BUDGET_MS) {
+                Log.w(TAG, "Tiled scan took " + scanMs + " ms, over the " + TILE_SCAN_BUDGET_MS
+                        + " ms budget");
+            }
+        }
+        if (inventory != null) {
+            mResultCache.put(mFrameHashes, inputCount, inventory, now);
+        }
+        return inventory;
+    }
+
+    /**
+     * Feed the inventory found in the last frame to the scan in progress, and publish it once
+     * the scan ends, to everyone waiting for the scan, or straight away while streaming
+     * continuously. Runs on the publish stage of the pipeline.
+     *
+     * @param timestampNanos capture time of the frame, on the {@link System#nanoTime()} clock
+     */
+    private void onInventoryRecognized(Inventory frameInventory, long timestampNanos) {
+        final long capturedAtMillis = System.currentTimeMillis()
+                - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timestampNanos);
+        final ScanHistory history = mHistory;
+        if (history != null) {
+            history.record(capturedAtMillis, frameInventory);
+        }
+        final ScanSession scan = mScan;
+        final Inventory inventory;
+        if (scan != null) {
+            if (!scan.add(frameInventory, timestampNanos)) {
+                return;
+            }
+            mScan = null;
+            if (SCAN_MAX_FRAMES > 1) {
+                mFrameSource.stopStreaming();
+            }
+            inventory = scan.getResult();
+            Log.i(TAG, "Scan " + (scan.isConverged() ? "converged" : "hit the frame limit")
+                    + " after " + scan.getFrameCount() + " frames, "
+                    + TimeUnit.NANOSECONDS.toMillis(scan.getDurationNanos()) + " ms");
+        } else if (mContinuousStreaming) {
+            inventory = mStreamFilter.update(frameInventory, timestampNanos);
+        } else {
+            // Late frame of a scan that already ended.
+            return;
         }
 
+        mPublisher.submit(inventory);
+        final InventoryServer localServer = mLocalServer;
+        if (localServer != null) {
+            localServer.update(inventory, capturedAtMillis);
+        }
+        if (mStartup.markFirstAnswer()) {
+            Log.i(TAG, "Time to first answer: " + mStartup.getTimeToFirstAnswerMillis() + " ms");
+        }
+
+        Log.d(TAG, "Queue depths: preprocess=" + mPipeline.getPreprocessQueueDepth()
+                + " inference=" + mPipeline.getInferenceQueueDepth()
+                + " publish=" + mPipeline.getPublishQueueDepth()
+                + ", dropped " + mPipeline.getDroppedFrameCount()
+                + " of " + mPipeline.getSubmittedFrameCount() + " frames"
+                + ", result cache " + mResultCache.getHitCount() + " hits "
+                + mResultCache.getMissCount() + " misses"
+                + ", " + mPublisher.getWriteCount() + " writes " + mPublisher.getSkipCount()
+                + " unchanged");
+
+        if (scan != null) {
+            mScans.complete(inventory);
+        } else {
+            showInventory(inventory);
+        }
     }
 
     /**
-     * Clean up the resources used by the classifier.
+     * Show an inventory on the display. May be called from any thread.
      */
-    private void destroyClassifier() {
-        mTensorFlowLite.close();
+    private void showInventory(Inventory inventory) {
+        StringBuilder displayResultsBuilder = new StringBuilder();
+        for (int label = 0; label < inventory.size(); ++label) {
+            if (label > 0) {
+                displayResultsBuilder.append("\n");
+            }
+            displayResultsBuilder.append("has ").append(inventory.getLabels().get(label))
+                    .append(" = ").append(inventory.has(label));
+        }
+        final String displayResults = displayResultsBuilder.toString();
+        Log.d("DevLogger",displayResults);
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                updateStatus(displayResults);
+            }
+        });
     }
 
     /**
-     * Process an image and identify what is in it. When done, the method
-     * {@link #onPhotoRecognitionReady(Collection)} must be called with the results of
-     * the image recognition process.
-     *
-     * @param image Bitmap containing the image to be classified. The image can be
-     *              of any size, but preprocessing might occur to resize it to the
-     *              format expected by the classification process, which can be time
-     *              and power consuming.
-     */
-    private void doRecognize(Bitmap image) {
-        final Drinks drinksData = classifyFrame(image);
-
-        if (drinksData != null) {
-            new Thread(new Runnable() {
-                public void run() {
-                    DatabaseReference database = FirebaseDatabase.getInstance().getReference();
-                    database.child("drinks").setValue(drinksData);
+     * Start model, label, camera and Firebase initialization in parallel. The pipeline is built
+     * once all of them are done.
+     */
+    private void initStartup() {
+        if (TILED_SCAN) {
+            mTileLayout = new TileLayout(PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT,
+                    TILE_WINDOW_SIZE, TILE_MIN_OVERLAP);
+        }
+        final ModelSource updated = updatedModelSource();
+        mModelSource = updated != null ? updated : ModelSource.fromAssets(this,
+                ImageClassifier.MODEL_PATH, ImageClassifier.LABEL_PATH);
+        mStartup = new StartupCoordinator();
+        mStartup.addTask("model", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                mModelHandle = mModelSource.acquireModel();
+            }
+        });
+        mStartup.addTask("labels", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                mLabelsHandle = mModelSource.acquireLabels();
+            }
+        });
+        mStartup.addTask("classifier", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                final ClassifierPool pool = new ClassifierPool(mModelSource,
+                        Runtime.getRuntime().availableProcessors(),
+                        new InterpreterTuner(ImageClassifierActivity.this));
+                if (WARM_UP_INFERENCE) {
+                    pool.warmUp(mTileLayout == null ? 1 : mTileLayout.getTileCount());
                 }
-            }).start();
+                classifier = pool;
+            }
+        });
+        mStartup.addTask("camera", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                initFrameSource();
+            }
+        });
+        mStartup.addTask("firebase", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                mDrinksReference = FirebaseDatabase.getInstance().getReference().child("drinks");
+            }
+        });
+        mStartup.addTask("history", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                try (ModelRegistry.Handle<List<String>> labels = mModelSource.acquireLabels()) {
+                    mHistory = new ScanHistory(new File(getFilesDir(), HISTORY_FILE),
+                            labels.get().size(), HISTORY_CAPACITY);
+                }
+            }
+        });
+        mStartup.addTask("outbox", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                mOutbox = new InventoryOutbox(new File(getFilesDir(), OUTBOX_FILE),
+                        OUTBOX_CAPACITY);
+            }
+        });
+        mStartup.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStartupComplete();
+                    }
+                });
+            }
+        });
+        mStartup.start();
+    }
+
+    /**
+     * Readiness gate opened: build the pipeline and let the button through.
+     */
+    private void onStartupComplete() {
+        Log.i(TAG, "Ready in " + mStartup.getTimeToReadyMillis() + " ms, tasks "
+                + mStartup.getTaskDurationsMillis());
+        for (Map.Entry<String, Throwable> failure : mStartup.getFailures().entrySet()) {
+            Log.e(TAG, "Startup task " + failure.getKey() + " failed", failure.getValue());
         }
+        if (isDestroyed()) {
+            // Destroyed while starting up: release what the tasks created since.
+            releaseResources();
+            return;
+        }
+        initPreprocessing();
+        initModelUpdates();
+        initOutboxReplay();
+        initLocalServer();
+        updateStatus(getString(R.string.button_message));
+    }
 
-        StringBuilder displayResultsBuilder = new StringBuilder();
-        displayResultsBuilder.append("has coke = "+drinksData.coke).append("\n");
-        displayResultsBuilder.append("has perrier = "+drinksData.perrier).append("\n");
-        displayResultsBuilder.append("has diet coke = "+drinksData.dietCoke).append("\n");
-        displayResultsBuilder.append("has other = "+drinksData.other);
-        Log.d("DevLogger",displayResultsBuilder.toString());
+    /**
+     * Serve the inventory on LOCAL_SERVER_PORT. A request for a fresh scan runs one like the
+     * button does, or waits for the next frame while streaming continuously.
+     */
+    private void initLocalServer() {
+        final InventoryServer server = new InventoryServer(
+                new InetSocketAddress(LOCAL_SERVER_PORT), new InventoryServer.ScanTrigger() {
+            @Override
+            public void requestScan() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestLocalScan();
+                    }
+                });
+            }
+        }, LOCAL_SCAN_TIMEOUT_MS);
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot serve the inventory on port " + LOCAL_SERVER_PORT, e);
+            return;
+        }
+        mLocalServer = server;
+        Log.i(TAG, "Serving the inventory on port " + server.getPort());
+    }
+
+    private void requestLocalScan() {
+        final InventoryServer server = mLocalServer;
+        if (server == null || mContinuousStreaming) {
+            return;
+        }
+        if (mPipeline == null || mFrameSource == null) {
+            server.answerWaiting();
+            return;
+        }
+        // The result reaches the server through onInventoryRecognized before the listeners.
+        mScans.requestScan(new ScanCoordinator.Listener<Inventory>() {
+            @Override
+            public void onScanResult(Inventory result) {
+                server.answerWaiting();
+            }
+        });
     }
 
     /**
-     * Classifies a frame from the preview stream.
+     * Replay the outbox whenever the database connection comes up, including right away if it
+     * already is.
      */
-    private Drinks classifyFrame(Bitmap bitmap) {
-        Log.d("DevLogger", "classifyFrame" +
-                "");
+    private void initOutboxReplay() {
+        if (mOutbox == null || mDrinksReference == null) {
+            return;
+        }
+        mConnectedReference = FirebaseDatabase.getInstance().getReference(".info/connected");
+        mConnectedListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                if (Boolean.TRUE.equals(snapshot.getValue(Boolean.class))) {
+                    replayOutbox();
+                }
+            }
 
-        if (classifier == null) {
-            Toast.makeText(this, "Uninitialized Classifier or invalid context.",
-                    Toast.LENGTH_SHORT);
+            @Override
+            public void onCancelled(DatabaseError error) {
+                Log.w(TAG, "Connection state unavailable: " + error);
+            }
+        };
+        mConnectedReference.addValueEventListener(mConnectedListener);
+    }
+
+    /**
+     * Send everything still in the outbox as one update of the latest value per field.
+     */
+    private void replayOutbox() {
+        final InventoryOutbox outbox = mOutbox;
+        final DatabaseReference drinks = mDrinksReference;
+        if (outbox == null || drinks == null) {
+            return;
+        }
+        final InventoryOutbox.Batch batch = outbox.pending();
+        if (batch.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Replaying " + batch.getRecordCount() + " inventory writes as "
+                + batch.getValues());
+        drinks.updateChildren(batch.getValues(), new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError error, DatabaseReference reference) {
+                if (error != null) {
+                    Log.w(TAG, "Outbox replay failed, kept for the next one: " + error);
+                    outbox.reject();
+                    return;
+                }
+                try {
+                    outbox.acknowledge(batch);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot truncate the outbox", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the outbox records up to {@code mark} once the database confirmed the write. Once a
+     * write failed, the outbox keeps everything until a replay, which the next successful write
+     * starts.
+     */
+    private DatabaseReference.CompletionListener acknowledgeOutbox(final InventoryOutbox outbox,
+                                                                   final long mark) {
+        return new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError error, DatabaseReference reference) {
+                if (error != null) {
+                    Log.w(TAG, "Inventory write failed, kept in the outbox: " + error);
+                    outbox.reject();
+                    return;
+                }
+                if (outbox.needsReplay()) {
+                    replayOutbox();
+                    return;
+                }
+                try {
+                    outbox.acknowledge(mark);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot truncate the outbox", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The model and labels in MODEL_UPDATE_DIRECTORY, or null if there is no complete update.
+     */
+    private ModelSource updatedModelSource() {
+        final File directory = new File(getFilesDir(), MODEL_UPDATE_DIRECTORY);
+        final File model = new File(directory, ImageClassifier.MODEL_PATH);
+        final File labels = new File(directory, ImageClassifier.LABEL_PATH);
+        if (!model.isFile() || !labels.isFile()) {
             return null;
         }
+        return ModelSource.fromFiles(model, labels);
+    }
+
+    /**
+     * Watch MODEL_UPDATE_DIRECTORY for new models.
+     */
+    private void initModelUpdates() {
+        if (classifier == null) {
+            return;
+        }
+        final File directory = new File(getFilesDir(), MODEL_UPDATE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory + ", model updates disabled");
+            return;
+        }
+        mModelSwapExecutor = Executors.newSingleThreadExecutor();
+        mModelObserver = new FileObserver(directory.getPath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (ImageClassifier.MODEL_PATH.equals(path)) {
+                    mModelSwapExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            swapModel();
+                        }
+                    });
+                }
+            }
+        };
+        mModelObserver.startWatching();
+    }
+
+    /**
+     * Swap the updated model in, while scans keep running on the old one until it is ready.
+     * Runs on mModelSwapExecutor.
+     */
+    private void swapModel() {
+        final ClassifierPool pool = classifier;
+        final ModelSource updated = updatedModelSource();
+        if (pool == null || updated == null) {
+            return;
+        }
+        try {
+            pool.swapModel(updated);
+        } catch (IOException e) {
+            Log.e(TAG, "Keeping " + pool.getModelSource() + ", cannot use " + updated, e);
+            return;
+        }
+        // Results of the old model no longer count.
+        mResultCache.clear();
+        mModelSource = updated;
+        // The pool holds its own references to the new model; let the old one go.
+        if (mModelHandle != null) {
+            mModelHandle.close();
+        }
+        if (mLabelsHandle != null) {
+            mLabelsHandle.close();
+        }
+        reopenHistory(updated);
+        Log.i(TAG, "Now classifying with " + updated);
+    }
 
-        return classifier.classifyFrame(bitmap);
+    /**
+     * Start the history over if the model in {@code source} has another number of labels, so
+     * its results are recorded.
+     */
+    private void reopenHistory(ModelSource source) {
+        final ScanHistory history = mHistory;
+        if (history == null) {
+            return;
+        }
+        try (ModelRegistry.Handle<List<String>> labels = source.acquireLabels()) {
+            if (labels.get().size() == history.getLabelCount()) {
+                return;
+            }
+            // Closed first: the new layout resizes the file under the old mapping.
+            history.close();
+            mHistory = new ScanHistory(new File(getFilesDir(), HISTORY_FILE),
+                    labels.get().size(), HISTORY_CAPACITY);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot record the results of " + source, e);
+        }
     }
 
     /**
-     * Initialize the camera that will be used to capture images.
+     * Initialize preprocessing for the model that was loaded, and the pipeline behind it.
      */
-    private void initCamera() {
+    private void initPreprocessing() {
+        // Preprocessing follows the input type of the model that was loaded.
+        final boolean quantized = classifier != null && classifier.isQuantized();
         mImagePreprocessor = new ImagePreprocessor(PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT,
-                TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT);
-        mCameraHandler = CameraHandler.getInstance();
-        mCameraHandler.initializeCamera(this,
-                PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT, null,
-                new ImageReader.OnImageAvailableListener() {
+                TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT, quantized);
+        mImagePreprocessor.setJpegDecodeMode(JPEG_DECODE_MODE);
+        if (TILED_SCAN) {
+            mTileExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+            mTiledPreprocessor = new TiledPreprocessor(mTileLayout,
+                    TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT, quantized,
+                    ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD, mTileExecutor);
+            mImagePreprocessor.setTiledPreprocessor(mTiledPreprocessor);
+        }
+        mFrameHash = new PerceptualHash(TF_INPUT_IMAGE_WIDTH, TF_INPUT_IMAGE_HEIGHT, quantized);
+        mFrameHashes = new long[mTileLayout == null ? 1 : mTileLayout.getTileCount()];
+        mResultCache = new ResultCache<>(RESULT_CACHE_SIZE, RESULT_CACHE_MAX_DISTANCE,
+                TimeUnit.MILLISECONDS.toNanos(RESULT_CACHE_MAX_AGE_MS));
+        initPipeline();
+    }
+
+    /**
+     * Initialize the frame source, a recording if one was pushed to the device or the camera
+     * otherwise, feeding the capture stage of the pipeline.
+     */
+    private void initFrameSource() {
+        final FrameSource source = createFrameSource();
+        source.start(new FrameSource.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                final FramePipeline<Frame, Inventory> pipeline = mPipeline;
+                if (pipeline == null) {
+                    frame.release();
+                    return;
+                }
+                pipeline.submit(frame);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                Log.d(TAG, "Replay finished");
+            }
+        });
+        mFrameSource = source;
+    }
+
+    private FrameSource createFrameSource() {
+        final File replay = new File(getFilesDir(), REPLAY_DIRECTORY);
+        if (replay.isDirectory()) {
+            try {
+                return new ReplayFrameSource(replay, PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT,
+                        REPLAY_FPS, true);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to replay " + replay + ", using the camera.", e);
+            }
+        }
+        mCameraThread = new HandlerThread("pipeline-capture");
+        mCameraThread.start();
+        return new CameraFrameSource(this, PREVIEW_IMAGE_WIDTH, PREVIEW_IMAGE_HEIGHT,
+                CAPTURE_FORMAT, PERSISTENT_CAPTURE_SESSION, new Handler(mCameraThread.getLooper()));
+    }
+
+    /**
+     * Build the preprocess, inference and publish stages. If inference is slower than the
+     * camera, only the latest frame is kept and the others are dropped.
+     */
+    private void initPipeline() {
+        mPublisher = new InventoryPublisher(new InventoryPublisher.Sink() {
+            @Override
+            public void update(Map<String, Object> changes) {
+                DatabaseReference drinks = mDrinksReference;
+                if (drinks == null) {
+                    drinks = FirebaseDatabase.getInstance().getReference().child("drinks");
+                }
+                final InventoryOutbox outbox = mOutbox;
+                if (outbox == null) {
+                    drinks.updateChildren(changes);
+                    return;
+                }
+                final long mark;
+                try {
+                    mark = outbox.append(changes, System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot keep inventory write in the outbox", e);
+                    drinks.updateChildren(changes);
+                    return;
+                }
+                drinks.updateChildren(changes, acknowledgeOutbox(outbox, mark));
+            }
+        }, PUBLISH_DEBOUNCE_MS);
+        mPipeline = new FramePipeline<>(
+                new FramePipeline.Preprocessor<Frame>() {
                     @Override
-                    public void onImageAvailable(ImageReader imageReader) {
-                        Bitmap bitmap = mImagePreprocessor.preprocessImage(imageReader.acquireNextImage());
-                        onPhotoReady(bitmap);
+                    public boolean preprocess(Frame frame, ByteBuffer input) {
+                        return mImagePreprocessor.preprocessToTensor(frame, input) != null;
                     }
-                });
+                },
+                new FramePipeline.Inference<Inventory>() {
+                    @Override
+                    public Inventory infer(ByteBuffer input) {
+                        return doRecognize(input);
+                    }
+                },
+                new FramePipeline.Publisher<Inventory>() {
+                    @Override
+                    public void publish(Inventory result, long timestampNanos) {
+                        onInventoryRecognized(result, timestampNanos);
+                    }
+                },
+                new LatestFrameSlot.Recycler<Frame>() {
+                    @Override
+                    public void recycle(Frame frame) {
+                        frame.release();
+                    }
+                },
+                mImagePreprocessor.getInputSize(), PIPELINE_QUEUE_CAPACITY);
+        mPipeline.setErrorListener(new FramePipeline.ErrorListener() {
+            @Override
+            public void onError(String stage, RuntimeException error) {
+                Log.e(TAG, "Pipeline " + stage + " stage failed, skipping the frame", error);
+            }
+        });
+        mPipeline.start();
     }
 
     /**
-     * Clean up resources used by the camera.
+     * Switch between one picture per button press and continuous classification.
+     */
+    private void toggleStreaming() {
+        if (mScans.isScanning()) {
+            updateStatus("Still processing, please wait");
+            return;
+        }
+        if (mContinuousStreaming) {
+            mContinuousStreaming = false;
+            mFrameSource.stopStreaming();
+            updateStatus("Streaming stopped, dropped " + mPipeline.getDroppedFrameCount()
+                    + " of " + mPipeline.getSubmittedFrameCount() + " frames");
+        } else {
+            mStreamFilter = new InventoryFilter(STREAM_FILTER_STAGES, STREAM_FILTER_FACTOR,
+                    SCAN_FRAME_INTERVAL_NANOS, SCAN_CONVERGENCE_THRESHOLD,
+                    SCAN_CONVERGENCE_FRAMES);
+            mContinuousStreaming = true;
+            mFrameSource.startStreaming();
+            updateStatus("Streaming, long press to stop");
+        }
+    }
+
+    /**
+     * Clean up resources used by the frame source.
      */
     private void closeCamera() {
-        mCameraHandler.shutDown();
+        if (mPipeline != null) {
+            mPipeline.stop();
+        }
+        if (mFrameSource != null) {
+            mFrameSource.stop();
+        }
+        if (mTileExecutor != null) {
+            mTileExecutor.shutdown();
+        }
+        if (mCameraThread != null) {
+            mCameraThread.quitSafely();
+        }
     }
 
     /**
-     * Load the image that will be used in the classification process.
-     * When done, the method {@link #onPhotoReady(Bitmap)} must be called with the image.
+     * Start a scan: frames are submitted to the pipeline until the answer is stable. Only called
+     * through {@link #mScans}, so scans never overlap.
      */
     private void loadPhoto() {
-        mCameraHandler.takePicture();
+        mScan = new ScanSession(SCAN_MAX_FRAMES, SCAN_FILTER_FACTOR, SCAN_FRAME_INTERVAL_NANOS,
+                SCAN_CONVERGENCE_THRESHOLD, SCAN_CONVERGENCE_FRAMES);
+        // Runs for every scan; once an earlier scan completed, its deadline finds nothing overdue.
+        mMainHandler.postDelayed(mScanDeadline, SCAN_TIMEOUT_MS);
+        if (SCAN_MAX_FRAMES > 1) {
+            mFrameSource.startStreaming();
+        } else {
+            mFrameSource.requestFrame();
+        }
+    }
+
+    /**
+     * Stop feeding a scan that timed out; its waiting requests already got no result.
+     */
+    private void abandonScan() {
+        mScan = null;
+        if (SCAN_MAX_FRAMES > 1 && !mContinuousStreaming && mFrameSource != null) {
+            mFrameSource.stopStreaming();
+        }
+        Log.w(TAG, "Scan timed out after " + SCAN_TIMEOUT_MS + " ms");
+        updateStatus("No result, please try again");
     }
 
 
@@ -178,17 +934,9 @@ public class ImageClassifierActivity extends Activity {
         mResultText = findViewById(R.id.resultText);
         cameraButton = findViewById(R.id.camera_button);
 
-        try {
-            classifier = new ImageClassifier(this);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to initialize an image classifier. e = "+e.toString());
-        }
-
         updateStatus(getString(R.string.initializing));
-        initCamera();
-        initClassifier();
         initButton();
-        updateStatus(getString(R.string.button_message));
+        initStartup();
     }
 
     /**
@@ -204,23 +952,38 @@ public class ImageClassifierActivity extends Activity {
             @Override
             public void onClick(View view) {
                 Log.d("DevLogger", "cameraButton button press");
-                if (mProcessing) {
-                    updateStatus("Still processing, please wait");
+                if (mPipeline == null || mFrameSource == null) {
+                    updateStatus(getString(R.string.initializing));
+                    return;
+                }
+                if (mContinuousStreaming) {
+                    updateStatus("Streaming, long press to stop");
+                    return;
+                }
+                switch (mScans.requestScan(mShowScanResult)) {
+                    case STARTED:
+                        updateStatus("Running photo recognition");
+                        break;
+                    case JOINED:
+                        updateStatus("Still processing, please wait");
+                        break;
+                    case FRESH:
+                        Log.d(TAG, "Answered from the last scan");
+                        break;
                 }
-
-                updateStatus("Running photo recognition");
-                mProcessing = true;
-                loadPhoto();
             }
         });
-    }
-
-    /**
-     * Image capture process complete
-     */
-    private void onPhotoReady(Bitmap bitmap) {
-        mImage.setImageBitmap(bitmap);
-        doRecognize(bitmap);
+        cameraButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                if (mPipeline == null || mFrameSource == null) {
+                    updateStatus(getString(R.string.initializing));
+                    return true;
+                }
+                toggleStreaming();
+                return true;
+            }
+        });
     }
 
     /**
@@ -228,7 +991,6 @@ public class ImageClassifierActivity extends Activity {
      */
     private void onPhotoRecognitionReady(Collection<Recognition> results) {
         updateStatus(formatResults(results));
-        mProcessing = false;
     }
 
     /**
@@ -267,20 +1029,58 @@ public class ImageClassifierActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        try {
-            destroyClassifier();
-        } catch (Throwable t) {
-            // close quietly
+        releaseResources();
+    }
+
+    private void releaseResources() {
+        mMainHandler.removeCallbacks(mScanDeadline);
+        if (mModelObserver != null) {
+            mModelObserver.stopWatching();
+        }
+        if (mModelSwapExecutor != null) {
+            mModelSwapExecutor.shutdownNow();
         }
         try {
             closeCamera();
         } catch (Throwable t) {
             // close quietly
         }
+        if (mPublisher != null) {
+            mPublisher.close();
+        }
+        if (mConnectedReference != null) {
+            mConnectedReference.removeEventListener(mConnectedListener);
+        }
+        if (mOutbox != null) {
+            try {
+                mOutbox.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+        }
+        if (mLocalServer != null) {
+            mLocalServer.close();
+        }
+        if (mHistory != null) {
+            try {
+                mHistory.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+        }
         try {
-            classifier.close();
+            if (classifier != null) {
+                classifier.close();
+                classifier = null;
+            }
         } catch (Throwable t) {
             //close quietly
         }
+        if (mModelHandle != null) {
+            mModelHandle.close();
+        }
+        if (mLabelsHandle != null) {
+            mLabelsHandle.close();
+        }
     }
 }
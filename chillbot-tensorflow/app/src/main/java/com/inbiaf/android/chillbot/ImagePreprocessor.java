@@ -4,37 +4,220 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.media.Image;
 import android.os.Environment;
 import android.util.Log;
 
+import com.inbiaf.android.chillbot.classifier.ImageClassifier;
+
 import junit.framework.Assert;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Class that process an Image and extracts a Bitmap in a format appropriate for
  * the TensorFlow model.
+ * <p>
+ * Every Bitmap, buffer and transform is allocated once up front, so preprocessing a frame in
+ * steady state allocates nothing: JPEG frames are copied into a pooled byte array and decoded
+ * into the existing frame Bitmap through {@link BitmapFactory.Options#inBitmap}, and the crop
+ * draws through a cached {@link Matrix} and {@link Canvas}.
+ * <p>
+ * The pooled state is not thread-safe; use one instance per preprocessing thread.
  */
 public class ImagePreprocessor {
+    private static final String TAG = ImagePreprocessor.class.getSimpleName();
     private static final boolean SAVE_PREVIEW_BITMAP = false;
 
-    private Bitmap rgbFrameBitmap;
-    private Bitmap croppedBitmap;
+    /**
+     * How compressed JPEG frames are decoded.
+     */
+    public enum JpegDecodeMode {
+        /**
+         * Decode the whole frame at full resolution, then crop and scale it.
+         */
+        FULL_FRAME,
+        /**
+         * Decode the frame subsampled by the largest power of two that keeps its center square
+         * at least as large as the model input, then crop and do a small final resize. The
+         * decoder scales while decoding, which is much cheaper than a full decode.
+         */
+        SUBSAMPLED
+    }
+
+    /**
+     * Scratch space handed to the JPEG decoder so it does not allocate its own per frame.
+     */
+    private static final int DECODE_TEMP_STORAGE = 16 * 1024;
+
+    private final Bitmap rgbFrameBitmap;
+    /**
+     * Direct-to-tensor paths write raw uint8 instead of normalized floats.
+     */
+    private final boolean quantized;
+    private final Bitmap croppedBitmap;
+
+    private final BitmapFactory.Options decodeOptions;
+    /**
+     * Pooled copy of the compressed frame; only grows if a JPEG is larger than any before.
+     */
+    private byte[] jpegBytes;
+
+    private final Matrix cropMatrix;
+    private final Canvas cropCanvas;
+
+    private JpegDecodeMode decodeMode = JpegDecodeMode.FULL_FRAME;
+    private long lastDecodeNanos;
+
+    /* Subsampled decode state: the frame decoded into subsampledBitmap. Its exact size is up to
+     * the decoder's rounding, so the kernel and transform follow the first decoded frame. */
+    private final Bitmap subsampledBitmap;
+    private final BitmapFactory.Options subsampledOptions;
+    private final int[] subsampledPixels;
+    private RgbToTensorKernel subsampledKernel;
+    private final Matrix subsampledMatrix;
+    private int subsampledWidth;
+    private int subsampledHeight;
+
+    private final YuvToTensorConverter yuvConverter;
+    private final RgbToTensorKernel rgbKernel;
+    /**
+     * Decoded frame pixels fed to {@link #rgbKernel}.
+     */
+    private final int[] framePixels;
+    /**
+     * Kernel for RGB frames that do not match the preview size, e.g. replayed recordings.
+     */
+    private RgbToTensorKernel frameKernel;
+    /**
+     * Set when scanning the whole frame in tiles instead of its center square.
+     */
+    private TiledPreprocessor tiledPreprocessor;
+    /**
+     * Model input produced by the direct-to-tensor paths.
+     */
+    private final ByteBuffer inputBuffer;
 
     public ImagePreprocessor(int previewWidth, int previewHeight,
                              int croppedwidth, int croppedHeight) {
+        this(previewWidth, previewHeight, croppedwidth, croppedHeight, false);
+    }
+
+    /**
+     * @param quantized write the direct-to-tensor inputs as raw uint8 for a quantized model
+     */
+    public ImagePreprocessor(int previewWidth, int previewHeight,
+                             int croppedwidth, int croppedHeight, boolean quantized) {
+        this.quantized = quantized;
         this.croppedBitmap = Bitmap.createBitmap(croppedwidth, croppedHeight, Config.ARGB_8888);
         this.rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        this.yuvConverter = new YuvToTensorConverter(previewWidth, previewHeight,
+                croppedwidth, croppedHeight, quantized,
+                ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD);
+        this.rgbKernel = new RgbToTensorKernel(previewWidth, previewHeight,
+                croppedwidth, croppedHeight, quantized,
+                ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD);
+        this.framePixels = new int[previewWidth * previewHeight];
+
+        this.inputBuffer = ByteBuffer.allocateDirect(
+                Math.max(yuvConverter.getOutputSize(), rgbKernel.getOutputSize()));
+        this.inputBuffer.order(ByteOrder.nativeOrder());
+
+        this.decodeOptions = new BitmapFactory.Options();
+        this.decodeOptions.inBitmap = rgbFrameBitmap;
+        this.decodeOptions.inMutable = true;
+        this.decodeOptions.inPreferredConfig = Config.ARGB_8888;
+        this.decodeOptions.inSampleSize = 1;
+        this.decodeOptions.inTempStorage = new byte[DECODE_TEMP_STORAGE];
+        this.jpegBytes = new byte[previewWidth * previewHeight];
+
+        this.cropMatrix = new Matrix();
+        configureCropMatrix(cropMatrix, previewWidth, previewHeight,
+                croppedwidth, croppedHeight, 0);
+        this.cropCanvas = new Canvas(croppedBitmap);
+
+        final int minDim = Math.min(previewWidth, previewHeight);
+        final int sampleSize = computeSampleSize(minDim, Math.max(croppedwidth, croppedHeight));
+        // Rounded up: large enough whichever way the decoder rounds.
+        final int sampledWidth = (previewWidth + sampleSize - 1) / sampleSize;
+        final int sampledHeight = (previewHeight + sampleSize - 1) / sampleSize;
+        this.subsampledBitmap = Bitmap.createBitmap(sampledWidth, sampledHeight,
+                Config.ARGB_8888);
+        this.subsampledOptions = new BitmapFactory.Options();
+        this.subsampledOptions.inBitmap = subsampledBitmap;
+        this.subsampledOptions.inMutable = true;
+        this.subsampledOptions.inPreferredConfig = Config.ARGB_8888;
+        this.subsampledOptions.inSampleSize = sampleSize;
+        this.subsampledOptions.inTempStorage = decodeOptions.inTempStorage;
+        this.subsampledPixels = new int[sampledWidth * sampledHeight];
+        this.subsampledMatrix = new Matrix();
+        configureSubsampled(sampledWidth, sampledHeight);
     }
 
-    public Bitmap preprocessImage(final Image image) {
+    /**
+     * Size the subsampled kernel and transform for frames decoded at {@code width} x
+     * {@code height}.
+     */
+    private void configureSubsampled(int width, int height) {
+        subsampledWidth = width;
+        subsampledHeight = height;
+        subsampledKernel = new RgbToTensorKernel(width, height,
+                croppedBitmap.getWidth(), croppedBitmap.getHeight(), quantized,
+                ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD);
+        configureCropMatrix(subsampledMatrix, width, height,
+                croppedBitmap.getWidth(), croppedBitmap.getHeight(), 0);
+    }
+
+    /**
+     * Select how JPEG frames are decoded, so the full-frame and subsampled paths can be
+     * compared.
+     */
+    public void setJpegDecodeMode(JpegDecodeMode mode) {
+        decodeMode = mode;
+    }
+
+    public JpegDecodeMode getJpegDecodeMode() {
+        return decodeMode;
+    }
+
+    /**
+     * Time spent decoding the last JPEG frame, in nanoseconds.
+     */
+    public long getLastDecodeNanos() {
+        return lastDecodeNanos;
+    }
+
+    /**
+     * Largest power of two subsample factor that keeps {@code size} at least {@code target}.
+     */
+    static int computeSampleSize(int size, int target) {
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= target) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes a JPEG image and writes the model input in a single crop/resize/normalize pass,
+     * instead of going through the cropped Bitmap. The returned buffer is reused between calls.
+     */
+    public ByteBuffer preprocessImageToTensor(final Image image) {
+        inputBuffer.rewind();
+        return preprocessImageToTensor(image, inputBuffer);
+    }
+
+    /**
+     * Same as {@link #preprocessImageToTensor(Image)}, writing into {@code out} from its
+     * current position.
+     */
+    public ByteBuffer preprocessImageToTensor(final Image image, final ByteBuffer out) {
         if (image == null) {
             return null;
         }
@@ -42,46 +225,302 @@ public class ImagePreprocessor {
         Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
         Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
 
-        if (croppedBitmap != null && rgbFrameBitmap != null) {
-            ByteBuffer bb = image.getPlanes()[0].getBuffer();
-            rgbFrameBitmap = BitmapFactory.decodeStream(new ByteBufferBackedInputStream(bb));
-            cropAndRescaleBitmap(rgbFrameBitmap, croppedBitmap, 0);
+        final ByteBuffer result = preprocessJpegToTensor(image.getPlanes()[0].getBuffer(), out);
+        image.close();
+        return result;
+    }
+
+    /**
+     * Writes the model input for a JPEG or YUV image into {@code out}, picking the path from
+     * the image format, and closes the image.
+     */
+    public ByteBuffer preprocessToTensor(final Image image, final ByteBuffer out) {
+        if (image != null && image.getFormat() == ImageFormat.YUV_420_888) {
+            return preprocessYuvImage(image, out);
         }
+        return preprocessImageToTensor(image, out);
+    }
 
-        image.close();
+    /**
+     * Writes the model input for a frame from any {@link FrameSource} into {@code out} and
+     * releases the frame.
+     *
+     * @return {@code out}, or null if the frame type is not supported
+     */
+    public ByteBuffer preprocessToTensor(final Frame frame, final ByteBuffer out) {
+        if (tiledPreprocessor != null) {
+            return preprocessTilesToTensor(frame, out);
+        }
+        if (frame instanceof CameraFrame) {
+            return preprocessToTensor(((CameraFrame) frame).getImage(), out);
+        }
+        if (frame instanceof RgbFrame) {
+            final RgbFrame rgbFrame = (RgbFrame) frame;
+            kernelFor(rgbFrame.getWidth(), rgbFrame.getHeight()).process(rgbFrame.getPixels(), out);
+            frame.release();
+            return out;
+        }
+        if (frame != null) {
+            frame.release();
+        }
+        return null;
+    }
 
-        // For debugging
-        if (SAVE_PREVIEW_BITMAP) {
-            saveBitmap(croppedBitmap);
+    /**
+     * Scan the whole frame in overlapping tiles instead of only its center square. Frames from
+     * {@link #preprocessToTensor(Frame, ByteBuffer)} then produce one batched input holding every
+     * tile, and {@link #getInputSize()} grows accordingly. Pass null to go back to the center
+     * square.
+     */
+    public void setTiledPreprocessor(TiledPreprocessor tiledPreprocessor) {
+        if (tiledPreprocessor != null) {
+            final TileLayout layout = tiledPreprocessor.getLayout();
+            Assert.assertEquals("Invalid tile layout width",
+                    rgbFrameBitmap.getWidth(), layout.getFrameWidth());
+            Assert.assertEquals("Invalid tile layout height",
+                    rgbFrameBitmap.getHeight(), layout.getFrameHeight());
         }
-        return croppedBitmap;
+        this.tiledPreprocessor = tiledPreprocessor;
     }
 
-    private static class ByteBufferBackedInputStream extends InputStream {
+    /**
+     * Full-frame pixels of any frame type, then every tile of them into {@code out}.
+     */
+    private ByteBuffer preprocessTilesToTensor(final Frame frame, final ByteBuffer out) {
+        if (frame == null) {
+            return null;
+        }
+        final int width = rgbFrameBitmap.getWidth();
+        final int height = rgbFrameBitmap.getHeight();
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            Log.w(TAG, "Dropping " + frame.getWidth() + "x" + frame.getHeight()
+                    + " frame, tiles are laid out for " + width + "x" + height);
+            frame.release();
+            return null;
+        }
+
+        final int[] pixels;
+        if (frame instanceof RgbFrame) {
+            pixels = ((RgbFrame) frame).getPixels();
+        } else if (frame instanceof CameraFrame) {
+            final Image image = ((CameraFrame) frame).getImage();
+            final Image.Plane[] planes = image.getPlanes();
+            if (image.getFormat() == ImageFormat.YUV_420_888) {
+                YuvToTensorConverter.toArgb(planes[0].getBuffer(), planes[0].getRowStride(),
+                        planes[1].getBuffer(), planes[2].getBuffer(),
+                        planes[1].getRowStride(), planes[1].getPixelStride(),
+                        width, height, framePixels);
+            } else {
+                final Bitmap decoded = decodeJpeg(planes[0].getBuffer());
+                if (decoded == null) {
+                    frame.release();
+                    return null;
+                }
+                decoded.getPixels(framePixels, 0, width, 0, 0, width, height);
+            }
+            pixels = framePixels;
+        } else {
+            frame.release();
+            return null;
+        }
+
+        tiledPreprocessor.process(pixels, out);
+        frame.release();
+        return out;
+    }
 
-        ByteBuffer buf;
+    /**
+     * Kernel for RGB frames of the given size. Frames recorded at the preview size share
+     * {@link #rgbKernel}; any other size gets its own kernel, rebuilt only when the size changes.
+     */
+    private RgbToTensorKernel kernelFor(int width, int height) {
+        if (width == rgbKernel.getSourceWidth() && height == rgbKernel.getSourceHeight()) {
+            return rgbKernel;
+        }
+        if (frameKernel == null || frameKernel.getSourceWidth() != width
+                || frameKernel.getSourceHeight() != height) {
+            frameKernel = new RgbToTensorKernel(width, height,
+                    croppedBitmap.getWidth(), croppedBitmap.getHeight(), quantized,
+                    ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD);
+        }
+        return frameKernel;
+    }
 
-        public ByteBufferBackedInputStream(ByteBuffer buf) {
-            this.buf = buf;
+    /**
+     * Size in bytes of the model input written by the direct-to-tensor paths.
+     */
+    public int getInputSize() {
+        if (tiledPreprocessor != null) {
+            return tiledPreprocessor.getOutputSize();
         }
+        return inputBuffer.capacity();
+    }
 
-        public int read() throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+    /**
+     * Direct-to-tensor preprocessing of a compressed JPEG frame.
+     */
+    ByteBuffer preprocessJpegToTensor(ByteBuffer jpeg) {
+        inputBuffer.rewind();
+        return preprocessJpegToTensor(jpeg, inputBuffer);
+    }
+
+    /**
+     * @return {@code out}, or null if the frame could not be decoded
+     */
+    private ByteBuffer preprocessJpegToTensor(ByteBuffer jpeg, ByteBuffer out) {
+        final int length = copyJpeg(jpeg);
+        if (decodeMode == JpegDecodeMode.SUBSAMPLED) {
+            final Bitmap sampled = decodeJpegSubsampled(length);
+            if (sampled != null) {
+                sampled.getPixels(subsampledPixels, 0, subsampledWidth, 0, 0,
+                        subsampledWidth, subsampledHeight);
+                subsampledKernel.process(subsampledPixels, out);
+                return out;
             }
-            return buf.get() & 0xFF;
         }
+        final Bitmap frame = decodeJpeg(length);
+        if (frame == null) {
+            return null;
+        }
+        final int width = frame.getWidth();
+        frame.getPixels(framePixels, 0, width, 0, 0, width, frame.getHeight());
+        rgbKernel.process(framePixels, out);
+        return out;
+    }
 
-        public int read(byte[] bytes, int off, int len)
-                throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
+    /**
+     * Copies a compressed frame into the pooled byte array and returns its length.
+     */
+    private int copyJpeg(ByteBuffer jpeg) {
+        final int length = jpeg.remaining();
+        if (jpegBytes.length < length) {
+            jpegBytes = new byte[length];
+        }
+        jpeg.get(jpegBytes, 0, length);
+        return length;
+    }
+
+    /**
+     * Decodes a compressed frame into the pooled frame Bitmap.
+     *
+     * @return the frame Bitmap, or null if the frame could not be decoded
+     */
+    private Bitmap decodeJpeg(ByteBuffer jpeg) {
+        return decodeJpeg(copyJpeg(jpeg));
+    }
+
+    /**
+     * Decodes the frame already copied into {@link #jpegBytes} into the pooled frame Bitmap.
+     */
+    private Bitmap decodeJpeg(int length) {
+        final long start = System.nanoTime();
+        final Bitmap decoded = BitmapFactory.decodeByteArray(jpegBytes, 0, length, decodeOptions);
+        if (decoded == null) {
+            Log.w(TAG, "Cannot decode frame, dropping it");
+            return null;
+        }
+        if (decoded != rgbFrameBitmap) {
+            Log.w(TAG, "Decoder could not reuse the frame bitmap");
+        }
+        lastDecodeNanos = System.nanoTime() - start;
+        return decoded;
+    }
+
+    /**
+     * Decodes the frame already copied into {@link #jpegBytes}, subsampled, into the pooled
+     * subsampled Bitmap. No decoder is created per frame, unlike a region decode, which needs a
+     * new native decoder for every compressed image.
+     *
+     * @return the subsampled Bitmap, or null if the frame could not be decoded that way, in
+     * which case the caller falls back to a full-frame decode
+     */
+    private Bitmap decodeJpegSubsampled(int length) {
+        final long start = System.nanoTime();
+        final Bitmap decoded =
+                BitmapFactory.decodeByteArray(jpegBytes, 0, length, subsampledOptions);
+        if (decoded == null) {
+            return null;
+        }
+        if (decoded != subsampledBitmap) {
+            Log.w(TAG, "Decoder could not reuse the subsampled bitmap");
+        }
+        if (decoded.getWidth() != subsampledWidth || decoded.getHeight() != subsampledHeight) {
+            if ((long) decoded.getWidth() * decoded.getHeight() > subsampledPixels.length) {
+                return null;
             }
+            configureSubsampled(decoded.getWidth(), decoded.getHeight());
+        }
+        lastDecodeNanos = System.nanoTime() - start;
+        return decoded;
+    }
+
+    /**
+     * Converts a {@link ImageFormat#YUV_420_888} image directly into the model input buffer,
+     * without going through JPEG or a Bitmap. The returned buffer is reused between calls and
+     * is ready to be passed to {@link ImageClassifier#classifyFrame(ByteBuffer)}.
+     */
+    public ByteBuffer preprocessYuvImage(final Image image) {
+        inputBuffer.rewind();
+        return preprocessYuvImage(image, inputBuffer);
+    }
+
+    /**
+     * Same as {@link #preprocessYuvImage(Image)}, writing into {@code out} from its current
+     * position.
+     */
+    public ByteBuffer preprocessYuvImage(final Image image, final ByteBuffer out) {
+        if (image == null) {
+            return null;
+        }
+
+        Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
+        Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
+
+        final Image.Plane[] planes = image.getPlanes();
+        yuvConverter.convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                out);
+        image.close();
+        return out;
+    }
+
+    public Bitmap preprocessImage(final Image image) {
+        if (image == null) {
+            return null;
+        }
 
-            len = Math.min(len, buf.remaining());
-            buf.get(bytes, off, len);
-            return len;
+        Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
+        Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
+
+        Bitmap bitmap = preprocessJpeg(image.getPlanes()[0].getBuffer());
+        image.close();
+
+        // For debugging
+        if (SAVE_PREVIEW_BITMAP) {
+            saveBitmap(croppedBitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes a compressed JPEG frame and crops it into the model-sized Bitmap.
+     */
+    Bitmap preprocessJpeg(ByteBuffer jpeg) {
+        final int length = copyJpeg(jpeg);
+        if (decodeMode == JpegDecodeMode.SUBSAMPLED) {
+            final Bitmap sampled = decodeJpegSubsampled(length);
+            if (sampled != null) {
+                cropCanvas.drawBitmap(sampled, subsampledMatrix, null);
+                return croppedBitmap;
+            }
         }
+        final Bitmap frame = decodeJpeg(length);
+        if (frame == null) {
+            return null;
+        }
+        cropAndRescaleBitmap(frame);
+        return croppedBitmap;
     }
 
     /**
@@ -105,29 +544,34 @@ public class ImagePreprocessor {
         }
     }
 
-    static void cropAndRescaleBitmap(final Bitmap src, final Bitmap dst,
-                                     int sensorOrientation) {
-        Assert.assertEquals(dst.getWidth(), dst.getHeight());
-        final float minDim = Math.min(src.getWidth(), src.getHeight());
+    /**
+     * Draws the center square of a frame into {@link #croppedBitmap} through the cached
+     * transform.
+     */
+    private void cropAndRescaleBitmap(final Bitmap src) {
+        cropCanvas.drawBitmap(src, cropMatrix, null);
+    }
 
-        final Matrix matrix = new Matrix();
+    static void configureCropMatrix(final Matrix matrix, int srcWidth, int srcHeight,
+                                    int dstWidth, int dstHeight, int sensorOrientation) {
+        Assert.assertEquals(dstWidth, dstHeight);
+        final float minDim = Math.min(srcWidth, srcHeight);
+
+        matrix.reset();
 
         // We only want the center square out of the original rectangle.
-        final float translateX = -Math.max(0, (src.getWidth() - minDim) / 2);
-        final float translateY = -Math.max(0, (src.getHeight() - minDim) / 2);
+        final float translateX = -Math.max(0, (srcWidth - minDim) / 2);
+        final float translateY = -Math.max(0, (srcHeight - minDim) / 2);
         matrix.preTranslate(translateX, translateY);
 
-        final float scaleFactor = dst.getHeight() / minDim;
+        final float scaleFactor = dstHeight / minDim;
         matrix.postScale(scaleFactor, scaleFactor);
 
         // Rotate around the center if necessary.
         if (sensorOrientation != 0) {
-            matrix.postTranslate(-dst.getWidth() / 2.0f, -dst.getHeight() / 2.0f);
+            matrix.postTranslate(-dstWidth / 2.0f, -dstHeight / 2.0f);
             matrix.postRotate(sensorOrientation);
-            matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
+            matrix.postTranslate(dstWidth / 2.0f, dstHeight / 2.0f);
         }
-
-        final Canvas canvas = new Canvas(dst);
-        canvas.drawBitmap(src, matrix, null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What was seen for every label of the model: whether it is present, and the confidence of
+ * the model in it. Sized from the label list the model was loaded with, so a new label needs no
+ * change here.
+ * <p>
+ * Presence is a bitset and confidences a float array, so comparing two inventories compares a
+ * few words, and {@link #nextChange} walks the labels that differ without allocating. The
+ * compact form written by {@link #writeTo} is the presence bits followed by every confidence
+ * quantized to a byte. An inventory is not modified once it is published; not thread-safe
+ * before that.
+ */
+public final class Inventory {
+
+    private final List<String> labels;
+    private final long[] present;
+    private final float[] confidences;
+
+    /**
+     * An inventory with nothing present.
+     *
+     * @param labels model labels, in output order; shared, not copied
+     */
+    public Inventory(List<String> labels) {
+        this.labels = labels;
+        present = new long[(labels.size() + 63) >>> 6];
+        confidences = new float[labels.size()];
+    }
+
+    public static Inventory copyOf(Inventory inventory) {
+        final Inventory copy = new Inventory(inventory.labels);
+        System.arraycopy(inventory.present, 0, copy.present, 0, copy.present.length);
+        System.arraycopy(inventory.confidences, 0, copy.confidences, 0,
+                copy.confidences.length);
+        return copy;
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public int size() {
+        return confidences.length;
+    }
+
+    /**
+     * Index of a label, or -1 if the model does not have it.
+     */
+    public int indexOf(String label) {
+        return labels.indexOf(label);
+    }
+
+    public boolean has(int label) {
+        return (present[label >>> 6] & (1L << label)) != 0;
+    }
+
+    public void set(int label, boolean isPresent) {
+        if (isPresent) {
+            present[label >>> 6] |= 1L << label;
+        } else {
+            present[label >>> 6] &= ~(1L << label);
+        }
+    }
+
+    /**
+     * Mark every label absent; confidences are kept.
+     */
+    public void clear() {
+        Arrays.fill(present, 0);
+    }
+
+    public int countPresent() {
+        int count = 0;
+        for (long word : present) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Next present label at or after {@code from}, or -1.
+     */
+    public int nextPresent(int from) {
+        for (int word = from >>> 6; word < present.length; ++word) {
+            long bits = present[word];
+            if (word == from >>> 6) {
+                bits &= -1L << from;
+            }
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    public float getConfidence(int label) {
+        return confidences[label];
+    }
+
+    public void setConfidence(int label, float confidence) {
+        confidences[label] = confidence;
+    }
+
+    /**
+     * Copy the confidence of every label from a model output row.
+     */
+    public void setConfidences(float[] values) {
+        System.arraycopy(values, 0, confidences, 0, confidences.length);
+    }
+
+    /**
+     * Whether both inventories are for the same labels.
+     */
+    public boolean sameLabels(Inventory other) {
+        return labels == other.labels || labels.equals(other.labels);
+    }
+
+    /**
+     * Whether the same labels are present in both, ignoring confidences.
+     */
+    public boolean samePresence(Inventory other) {
+        return sameLabels(other) && Arrays.equals(present, other.present);
+    }
+
+    /**
+     * Next label at or after {@code from} whose presence differs from {@code before}, or -1.
+     * Both inventories must be for the same labels.
+     */
+    public int nextChange(Inventory before, int from) {
+        for (int word = from >>> 6; word < present.length; ++word) {
+            long bits = present[word] ^ before.present[word];
+            if (word == from >>> 6) {
+                bits &= -1L << from;
+            }
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bytes written by {@link #writeTo}.
+     */
+    public int serializedSize() {
+        return serializedSize(size());
+    }
+
+    public static int serializedSize(int labelCount) {
+        return ((labelCount + 7) >>> 3) + labelCount;
+    }
+
+    /**
+     * Write the compact form at the buffer's position: one presence bit per label, lowest label
+     * in the lowest bit of the first byte, then every confidence quantized to 0..255.
+     */
+    public void writeTo(ByteBuffer out) {
+        final int presenceBytes = (size() + 7) >>> 3;
+        for (int i = 0; i < presenceBytes; ++i) {
+            out.put((byte) (present[i >>> 3] >>> ((i & 7) << 3)));
+        }
+        for (float confidence : confidences) {
+            out.put(quantize(confidence));
+        }
+    }
+
+    /**
+     * Read an inventory in the form written by {@link #writeTo}.
+     */
+    public static Inventory readFrom(ByteBuffer in, List<String> labels) {
+        final Inventory inventory = new Inventory(labels);
+        final int presenceBytes = (inventory.size() + 7) >>> 3;
+        for (int i = 0; i < presenceBytes; ++i) {
+            inventory.present[i >>> 3] |= (in.get() & 0xFFL) << ((i & 7) << 3);
+        }
+        for (int i = 0; i < inventory.size(); ++i) {
+            inventory.confidences[i] = (in.get() & 0xFF) / 255.0f;
+        }
+        return inventory;
+    }
+
+    static byte quantize(float confidence) {
+        return (byte) Math.round(Math.max(0f, Math.min(1f, confidence)) * 255);
+    }
+
+    /**
+     * The present labels, e.g. "[cocacola, perrier]".
+     */
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder("[");
+        for (int label = nextPresent(0); label >= 0; label = nextPresent(label + 1)) {
+            if (text.length() > 1) {
+                text.append(", ");
+            }
+            text.append(labels.get(label));
+        }
+        return text.append(']').toString();
+    }
+}
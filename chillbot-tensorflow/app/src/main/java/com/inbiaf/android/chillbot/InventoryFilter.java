@@ -0,0 +1,79 @@
+package com.inbiaf.android.chillbot;
+
+import com.inbiaf.android.chillbot.classifier.TemporalFilter;
+
+/**
+ * Smooths a stream of per-frame inventories over time. Each label's presence is a 0/1 vote run
+ * through a {@link TemporalFilter} that follows the frame timestamps; a label is present in the
+ * smoothed inventory while its filtered vote is above one half. Confidences are those of the
+ * latest frame.
+ * <p>
+ * The filter starts again when the label set changes, e.g. after a model swap. Not
+ * thread-safe.
+ */
+public class InventoryFilter {
+
+    private final int stageCount;
+    private final float factor;
+    private final long frameIntervalNanos;
+    private final float convergenceThreshold;
+    private final int convergenceFrames;
+    /* One vote per label, sized by the first frame. */
+    private TemporalFilter filter;
+    private float[] votes;
+
+    /**
+     * @param stageCount           number of cascaded low pass stages
+     * @param factor               smoothing step per {@code frameIntervalNanos}
+     * @param frameIntervalNanos   nominal time between frames
+     * @param convergenceThreshold largest frame-to-frame change of any label's vote that
+     *                             counts as stable
+     * @param convergenceFrames    stable frames in a row before {@link #isConverged()}
+     */
+    public InventoryFilter(int stageCount, float factor, long frameIntervalNanos,
+                           float convergenceThreshold, int convergenceFrames) {
+        this.stageCount = stageCount;
+        this.factor = factor;
+        this.frameIntervalNanos = frameIntervalNanos;
+        this.convergenceThreshold = convergenceThreshold;
+        this.convergenceFrames = convergenceFrames;
+    }
+
+    /**
+     * Adds the inventory seen in one frame.
+     *
+     * @param timestampNanos capture time of the frame, see {@link Frame#getTimestampNanos()}
+     * @return a new inventory with the smoothed presence
+     */
+    public Inventory update(Inventory inventory, long timestampNanos) {
+        if (votes == null || votes.length != inventory.size()) {
+            votes = new float[inventory.size()];
+            filter = new TemporalFilter(votes.length, stageCount, factor, frameIntervalNanos,
+                    convergenceThreshold, convergenceFrames, true,
+                    TemporalFilter.Convergence.EVERY_ENTRY);
+        }
+        for (int label = 0; label < votes.length; ++label) {
+            votes[label] = inventory.has(label) ? 1 : 0;
+        }
+        filter.update(votes, timestampNanos);
+        final Inventory smoothed = Inventory.copyOf(inventory);
+        for (int label = 0; label < votes.length; ++label) {
+            smoothed.set(label, votes[label] > 0.5f);
+        }
+        return smoothed;
+    }
+
+    /**
+     * Whether every label's vote has been stable for the convergence frames.
+     */
+    public boolean isConverged() {
+        return filter != null && filter.isConverged();
+    }
+
+    /**
+     * Frames added since the filter last started.
+     */
+    public int getUpdateCount() {
+        return filter == null ? 0 : filter.getUpdateCount();
+    }
+}
@@ -0,0 +1,520 @@
+package com.inbiaf.android.chillbot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of database updates that were not acknowledged yet, so the inventory is not
+ * lost when the board is offline or reboots before the database got it.
+ * <p>
+ * Updates are appended to a memory-mapped file as checksummed records, one per changed key,
+ * and synced before {@link #append} returns. {@link #pending()} reads everything outstanding
+ * back coalesced to the latest value per key, ready to be sent as one update;
+ * {@link #acknowledge} then drops what the database confirmed. Positions are logical and keep
+ * growing across truncations, so an acknowledgement for records already dropped is ignored.
+ * <p>
+ * The file holds two regions of records, only one of them in use, and two copies of the state
+ * saying which one and where its records start. Acknowledging only moves that start, and when
+ * the region fills up the latest value per key is compacted into the other one; either is
+ * committed by writing the older copy of the state, so a power loss midway leaves the previous
+ * state and its records intact. On open, the newest intact state is used and its records are
+ * read until the first one that is incomplete or fails its checksum.
+ * <p>
+ * Acknowledgements are cumulative, so they must not reach past a record that was never
+ * confirmed: one read back on open, or one of a write that was {@link #reject rejected}. Once
+ * there is such a record, acknowledging a single write drops nothing until a replay of
+ * {@link #pending()} is acknowledged, see {@link #needsReplay()}.
+ * <p>
+ * Values may be null, Boolean, Long, Double, String or byte[]. Thread-safe.
+ */
+public class InventoryOutbox implements Closeable {
+
+    private static final int MAGIC = 0x43424f32;
+    /* File header: magic, reserved, then two state slots. */
+    static final int STATE_OFFSET = 8;
+    /* State: generation, logical position of the first record, region, offset of the first
+     * record, CRC32 of what precedes it, reserved. */
+    static final int STATE_SIZE = 32;
+    private static final int STATE_CRC_OFFSET = 24;
+    private static final int HEADER_SIZE = STATE_OFFSET + 2 * STATE_SIZE;
+    /* Record header: total length, CRC32 of what follows, timestamp. */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_FALSE = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BYTES = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Outstanding updates, coalesced to the latest value per key.
+     */
+    public static final class Batch {
+        private final Map<String, Object> values;
+        private final long mark;
+        private final int recordCount;
+
+        Batch(Map<String, Object> values, long mark, int recordCount) {
+            this.values = values;
+            this.mark = mark;
+            this.recordCount = recordCount;
+        }
+
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * Position to {@link #acknowledge} once the values were written.
+         */
+        public long getMark() {
+            return mark;
+        }
+
+        /**
+         * Number of records the batch was coalesced from.
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public boolean isEmpty() {
+            return recordCount == 0;
+        }
+    }
+
+    private static final class Record {
+        final String key;
+        final Object value;
+        final long timestamp;
+
+        Record(String key, Object value, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int regionSize;
+    private final CRC32 crc = new CRC32();
+
+    private long generation;
+    private int region;
+    private int head;
+    private long base;
+    private int tail;
+    private int recordCount;
+    /* Records before this position were not confirmed by their own write, if past the base. */
+    private long heldMark;
+    private boolean closed;
+
+    /**
+     * Opens the outbox in {@code path}, creating it if needed, and recovers the records it
+     * holds.
+     *
+     * @param capacity size of the file in bytes, shared by the two regions
+     */
+    public InventoryOutbox(File path, int capacity) throws IOException {
+        if (capacity < HEADER_SIZE + 2 * (RECORD_HEADER_SIZE + 4)) {
+            throw new IllegalArgumentException("Outbox capacity too small");
+        }
+        regionSize = (capacity - HEADER_SIZE) / 2;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() < capacity) {
+                file.setLength(capacity);
+            }
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (map.getInt(0) != MAGIC || !readState()) {
+            map.putInt(0, MAGIC);
+            for (int i = STATE_OFFSET; i < HEADER_SIZE; i += 4) {
+                map.putInt(i, 0);
+            }
+            map.putInt(regionStart(0), 0);
+            map.force();
+            generation = 0;
+            region = 0;
+            head = regionStart(0);
+            base = 0;
+            writeState();
+        }
+        recover();
+        heldMark = mark();
+    }
+
+    /**
+     * Load the newest intact copy of the state.
+     *
+     * @return false if neither copy is intact
+     */
+    private boolean readState() {
+        boolean found = false;
+        for (int slot = 0; slot < 2; ++slot) {
+            final int offset = STATE_OFFSET + slot * STATE_SIZE;
+            final long slotGeneration = map.getLong(offset);
+            final int slotRegion = map.getInt(offset + 16);
+            final int slotHead = map.getInt(offset + 20);
+            if (slotGeneration <= (found ? generation : 0)
+                    || stateChecksum(offset) != map.getInt(offset + STATE_CRC_OFFSET)
+                    || slotRegion < 0 || slotRegion > 1 || slotHead < regionStart(slotRegion)
+                    || slotHead > regionEnd(slotRegion)) {
+                continue;
+            }
+            found = true;
+            generation = slotGeneration;
+            base = map.getLong(offset + 8);
+            region = slotRegion;
+            head = slotHead;
+        }
+        return found;
+    }
+
+    /**
+     * Commit the state by writing it over the older copy, once the records it points at are
+     * synced.
+     */
+    private void writeState() {
+        generation++;
+        final int offset = STATE_OFFSET + (int) (generation & 1) * STATE_SIZE;
+        map.putLong(offset, generation);
+        map.putLong(offset + 8, base);
+        map.putInt(offset + 16, region);
+        map.putInt(offset + 20, head);
+        map.putInt(offset + STATE_CRC_OFFSET, stateChecksum(offset));
+        map.force();
+    }
+
+    private int stateChecksum(int offset) {
+        final byte[] state = new byte[STATE_CRC_OFFSET];
+        final ByteBuffer view = map.duplicate();
+        view.position(offset);
+        view.get(state);
+        crc.reset();
+        crc.update(state, 0, state.length);
+        return (int) crc.getValue();
+    }
+
+    private int regionStart(int index) {
+        return HEADER_SIZE + index * regionSize;
+    }
+
+    private int regionEnd(int index) {
+        return regionStart(index) + regionSize;
+    }
+
+    /**
+     * Find the end of the valid records.
+     */
+    private void recover() {
+        tail = head;
+        recordCount = 0;
+        while (true) {
+            final int length = validRecordLength(tail);
+            if (length == 0) {
+                break;
+            }
+            tail += length;
+            recordCount++;
+        }
+        if (tail + 4 <= regionEnd(region)) {
+            map.putInt(tail, 0);
+        }
+    }
+
+    /**
+     * Length of the record at {@code offset}, or 0 if there is no complete, intact record.
+     */
+    private int validRecordLength(int offset) {
+        final int end = regionEnd(region);
+        if (offset + RECORD_HEADER_SIZE > end) {
+            return 0;
+        }
+        final int length = map.getInt(offset);
+        if (length < RECORD_HEADER_SIZE + 3 || length > end - offset) {
+            return 0;
+        }
+        final byte[] body = new byte[length - 8];
+        final ByteBuffer view = map.duplicate();
+        view.position(offset + 8);
+        view.get(body);
+        crc.reset();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue() == map.getInt(offset + 4) ? length : 0;
+    }
+
+    /**
+     * Append one record per changed key and sync them to storage.
+     *
+     * @return position to {@link #acknowledge} once the changes were written
+     * @throws IOException if the outbox is closed or full even after compaction
+     */
+    public synchronized long append(Map<String, Object> changes, long timestampMillis)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Outbox is closed");
+        }
+        final List<byte[]> records = new ArrayList<>(changes.size());
+        int size = 0;
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            final byte[] record = encode(change.getKey(), change.getValue(), timestampMillis);
+            records.add(record);
+            size += record.length;
+        }
+        if (tail + size + 4 > regionEnd(region)) {
+            compact();
+            if (tail + size + 4 > regionEnd(region)) {
+                throw new IOException("Outbox is full");
+            }
+        }
+        // Terminate first, so a crash while writing never exposes older bytes after the end.
+        map.putInt(tail + size, 0);
+        for (byte[] record : records) {
+            put(tail, record);
+            tail += record.length;
+            recordCount++;
+        }
+        map.force();
+        return mark();
+    }
+
+    /**
+     * Everything outstanding, latest value per key.
+     */
+    public synchronized Batch pending() {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (Record record : readRecords(head, tail)) {
+            values.remove(record.key);
+            values.put(record.key, record.value);
+        }
+        return new Batch(values, mark(), recordCount);
+    }
+
+    /**
+     * Drop the records up to {@code mark}, as returned by {@link #append}, once the database
+     * confirmed that write. Confirmations are expected in the order the writes were made.
+     * Ignored while the outbox {@link #needsReplay()}, as it could drop records that were
+     * never confirmed.
+     */
+    public synchronized void acknowledge(long mark) throws IOException {
+        if (closed) {
+            throw new IOException("Outbox is closed");
+        }
+        if (heldMark > base) {
+            return;
+        }
+        truncate(mark);
+    }
+
+    /**
+     * Drop the records of a batch from {@link #pending()} once the database confirmed it. As
+     * the batch held every outstanding record, this also confirms the ones held back.
+     */
+    public synchronized void acknowledge(Batch batch) throws IOException {
+        if (closed) {
+            throw new IOException("Outbox is closed");
+        }
+        truncate(batch.getMark());
+        if (batch.getMark() >= heldMark) {
+            heldMark = base;
+        }
+    }
+
+    /**
+     * Record that a write of this outbox failed. Everything outstanding is then kept until a
+     * replay of {@link #pending()} is acknowledged, as later writes cannot vouch for it.
+     */
+    public synchronized void reject() {
+        heldMark = mark();
+    }
+
+    /**
+     * Whether some records are only dropped by acknowledging a replay of {@link #pending()}.
+     */
+    public synchronized boolean needsReplay() {
+        return heldMark > base;
+    }
+
+    private void truncate(long mark) {
+        if (mark <= base) {
+            return;
+        }
+        final int cut = (int) Math.min(mark - base + head, tail);
+        base += cut - head;
+        head = cut;
+        writeState();
+        recover();
+    }
+
+    /**
+     * Rewrite the records as the latest value per key into the other region and switch to it.
+     * Their positions move past every mark handed out so far, so an older acknowledgement does
+     * not drop them.
+     */
+    private void compact() {
+        final Map<String, Record> latest = new LinkedHashMap<>();
+        for (Record record : readRecords(head, tail)) {
+            latest.remove(record.key);
+            latest.put(record.key, record);
+        }
+        final long end = mark();
+        final boolean held = heldMark > base;
+        final int other = 1 - region;
+        int offset = regionStart(other);
+        for (Record record : latest.values()) {
+            final byte[] bytes = encode(record.key, record.value, record.timestamp);
+            put(offset, bytes);
+            offset += bytes.length;
+        }
+        map.putInt(offset, 0);
+        map.force();
+        region = other;
+        head = regionStart(other);
+        base = end;
+        writeState();
+        recover();
+        if (held) {
+            heldMark = mark();
+        }
+    }
+
+    private long mark() {
+        return base + tail - head;
+    }
+
+    private void put(int offset, byte[] bytes) {
+        final ByteBuffer view = map.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private List<Record> readRecords(int from, int to) {
+        final List<Record> records = new ArrayList<>(recordCount);
+        int offset = from;
+        while (offset < to) {
+            final int length = map.getInt(offset);
+            final ByteBuffer view = map.duplicate();
+            view.position(offset + 8);
+            final long timestamp = view.getLong();
+            final byte[] key = new byte[view.getShort()];
+            view.get(key);
+            records.add(new Record(new String(key, UTF_8), decodeValue(view), timestamp));
+            offset += length;
+        }
+        return records;
+    }
+
+    private byte[] encode(String key, Object value, long timestamp) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        final byte[] valueBytes = encodeValue(value);
+        final int length = RECORD_HEADER_SIZE + 2 + keyBytes.length + valueBytes.length;
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0);
+        record.putLong(timestamp);
+        record.putShort((short) keyBytes.length);
+        record.put(keyBytes);
+        record.put(valueBytes);
+        crc.reset();
+        crc.update(record.array(), 8, length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static byte[] encodeValue(Object value) {
+        if (value == null) {
+            return new byte[]{TYPE_NULL};
+        }
+        if (value instanceof Boolean) {
+            return new byte[]{(Boolean) value ? TYPE_TRUE : TYPE_FALSE};
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            return ByteBuffer.allocate(9).put(TYPE_LONG)
+                    .putLong(((Number) value).longValue()).array();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return ByteBuffer.allocate(9).put(TYPE_DOUBLE)
+                    .putDouble(((Number) value).doubleValue()).array();
+        }
+        final byte type;
+        final byte[] bytes;
+        if (value instanceof String) {
+            type = TYPE_STRING;
+            bytes = ((String) value).getBytes(UTF_8);
+        } else if (value instanceof byte[]) {
+            type = TYPE_BYTES;
+            bytes = (byte[]) value;
+        } else {
+            throw new IllegalArgumentException("Cannot store " + value.getClass().getName());
+        }
+        return ByteBuffer.allocate(5 + bytes.length).put(type).putInt(bytes.length).put(bytes)
+                .array();
+    }
+
+    private static Object decodeValue(ByteBuffer in) {
+        final byte type = in.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_STRING:
+            case TYPE_BYTES:
+                final byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                return type == TYPE_STRING ? new String(bytes, UTF_8) : bytes;
+            default:
+                throw new IllegalStateException("Unknown value type " + type);
+        }
+    }
+
+    /**
+     * Records not acknowledged yet.
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Bytes of the records not acknowledged yet.
+     */
+    public synchronized int getSize() {
+        return tail - head;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        map.force();
+        file.close();
+    }
+}
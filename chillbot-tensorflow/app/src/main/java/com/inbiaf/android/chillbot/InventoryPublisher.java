@@ -0,0 +1,149 @@
+package com.inbiaf.android.chillbot;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the inventory to the database from a single thread, and only when it changed.
+ * <p>
+ * A new inventory is written once it has stayed the same for the debounce window, so a result
+ * flapping between two states is not written at every flip; flapping back to what was last
+ * written cancels the pending write. Only the labels whose presence differs from the last write
+ * are sent, each as a boolean child keyed by the label.
+ */
+public class InventoryPublisher implements Closeable {
+
+    /**
+     * Database keys of the labels the voice action already knows under another name.
+     */
+    private static final Map<String, String> DATABASE_KEYS =
+            Collections.singletonMap("cocacola", "coke");
+
+    /**
+     * Receives the changed labels, keyed like the database children of the inventory.
+     */
+    public interface Sink {
+        void update(Map<String, Object> changes);
+    }
+
+    private final Sink sink;
+    private final long debounceMillis;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    /* Only used on the writer thread. */
+    private Inventory written;
+    private Inventory pending;
+    private ScheduledFuture<?> pendingWrite;
+
+    private volatile long writeCount;
+    private volatile long skipCount;
+
+    /**
+     * @param debounceMillis how long an inventory must stay the same before it is written
+     */
+    public InventoryPublisher(Sink sink, long debounceMillis) {
+        this.sink = sink;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Offer the latest inventory, which must not be modified afterwards. Returns right away;
+     * the write, if any, happens later.
+     */
+    public void submit(final Inventory inventory) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                onSubmit(inventory);
+            }
+        });
+    }
+
+    private void onSubmit(Inventory inventory) {
+        if (pending != null && pending.samePresence(inventory)) {
+            // Already waiting to write this.
+            skipCount++;
+            return;
+        }
+        if (pendingWrite != null) {
+            pendingWrite.cancel(false);
+            pendingWrite = null;
+            pending = null;
+        }
+        if (written != null && written.samePresence(inventory)) {
+            skipCount++;
+            return;
+        }
+        pending = inventory;
+        pendingWrite = writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        }, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        final Inventory inventory = pending;
+        pending = null;
+        pendingWrite = null;
+        sink.update(diff(written, inventory));
+        written = inventory;
+        writeCount++;
+    }
+
+    /**
+     * Labels of {@code after} whose presence differs from {@code before}, or all of them if
+     * there is no {@code before} or it is for other labels.
+     */
+    static Map<String, Object> diff(Inventory before, Inventory after) {
+        final Map<String, Object> changes = new LinkedHashMap<>();
+        if (before == null || !before.sameLabels(after)) {
+            for (int label = 0; label < after.size(); ++label) {
+                changes.put(keyOf(after.getLabels().get(label)), after.has(label));
+            }
+            return changes;
+        }
+        for (int label = after.nextChange(before, 0); label >= 0;
+             label = after.nextChange(before, label + 1)) {
+            changes.put(keyOf(after.getLabels().get(label)), after.has(label));
+        }
+        return changes;
+    }
+
+    /**
+     * Database key of a label.
+     */
+    static String keyOf(String label) {
+        final String key = DATABASE_KEYS.get(label);
+        return key != null ? key : label;
+    }
+
+    /**
+     * Inventories written so far.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Inventories not written because they matched what was written or about to be.
+     */
+    public long getSkipCount() {
+        return skipCount;
+    }
+
+    /**
+     * Stop taking inventories. A write still pending happens when its window ends.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,485 @@
+package com.inbiaf.android.chillbot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Answers inventory queries from the local network, so a query does not need a round trip
+ * through the cloud and still works when the uplink is down.
+ * <p>
+ * {@code GET /inventory} returns the last published inventory, the confidence of every label
+ * and the age of the result as compact JSON, e.g.
+ * {@code {"present":{"cocacola":true,"perrier":false,"other":false},
+ * "confidences":{"cocacola":0.92,"perrier":0.03,"other":0.05},"scannedAt":1539760000000,
+ * "ageMs":1200}}. With {@code ?scan=1} a scan is requested first and the answer waits for the
+ * next published inventory, up to the scan timeout.
+ * <p>
+ * A single thread serves every connection with non-blocking I/O, and connections are kept
+ * alive between requests. The JSON of the inventory is built when it is published, not for
+ * every request.
+ */
+public class InventoryServer implements Closeable {
+
+    /**
+     * Starts a scan whose result is then passed to {@link #update}, or calls
+     * {@link #answerWaiting()} if there is nothing new to publish. Called on the server thread.
+     */
+    public interface ScanTrigger {
+        void requestScan();
+    }
+
+    private static final int MAX_REQUEST_SIZE = 4096;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Snapshot {
+        /* The JSON object, without its age and closing brace. */
+        final String json;
+        final long timeMillis;
+
+        Snapshot(String json, long timeMillis) {
+            this.json = json;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private static final class Connection {
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        ByteBuffer out;
+        boolean closeAfterWrite;
+        /* When the connection started waiting for a scan, or -1. */
+        long waitingSinceMillis = -1;
+        long lastActiveMillis;
+
+        Connection(SelectionKey key, long now) {
+            this.key = key;
+            lastActiveMillis = now;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final ScanTrigger trigger;
+    private final long scanTimeoutMillis;
+    private final AtomicBoolean answerWaiting = new AtomicBoolean();
+
+    /* Only used on the server thread. */
+    private final List<Connection> waiting = new ArrayList<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile Snapshot snapshot;
+    private volatile long requestCount;
+
+    /**
+     * @param address           where to listen; port 0 picks a free port
+     * @param trigger           starts a scan for {@code ?scan=1}, or null to ignore it
+     * @param scanTimeoutMillis longest a {@code ?scan=1} request waits for a new inventory
+     */
+    public InventoryServer(InetSocketAddress address, ScanTrigger trigger,
+                           long scanTimeoutMillis) {
+        this.address = address;
+        this.trigger = trigger;
+        this.scanTimeoutMillis = scanTimeoutMillis;
+    }
+
+    /**
+     * Bind the port and start serving.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(serveLoop, "inventory-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Port the server listens on, once started.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Publish a new inventory and answer the requests waiting for one. May be called from any
+     * thread.
+     *
+     * @param timeMillis when the inventory was seen
+     */
+    public void update(Inventory inventory, long timeMillis) {
+        snapshot = new Snapshot(toJson(inventory, timeMillis), timeMillis);
+        answerWaiting();
+    }
+
+    /**
+     * Answer the requests waiting for a scan with the current inventory. May be called from any
+     * thread.
+     */
+    public void answerWaiting() {
+        if (running && !answerWaiting.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    static String toJson(Inventory inventory, long timeMillis) {
+        final List<String> labels = inventory.getLabels();
+        final StringBuilder json = new StringBuilder(32 + 48 * labels.size());
+        json.append("{\"present\":{");
+        for (int label = 0; label < labels.size(); ++label) {
+            if (label > 0) {
+                json.append(',');
+            }
+            appendString(json, labels.get(label));
+            json.append(':').append(inventory.has(label));
+        }
+        json.append("},\"confidences\":{");
+        for (int label = 0; label < labels.size(); ++label) {
+            if (label > 0) {
+                json.append(',');
+            }
+            appendString(json, labels.get(label));
+            json.append(':').append(Math.round(inventory.getConfidence(label) * 1000) / 1000.0);
+        }
+        return json.append("},\"scannedAt\":").append(timeMillis).toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private final Runnable serveLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT_MS);
+                    final long now = System.currentTimeMillis();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key, now);
+                    }
+                    if (answerWaiting.getAndSet(false)) {
+                        answerAll(now);
+                    }
+                    expire(now);
+                }
+            } catch (IOException e) {
+                // The selector failed; nothing left to serve with.
+            } finally {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    closeQuietly(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // close quietly
+                }
+            }
+        }
+    };
+
+    private void handle(SelectionKey key, long now) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept(now);
+                return;
+            }
+            final Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                read(connection, now);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(connection);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Only this connection is lost; a bad request must not stop the server.
+            closeQuietly(key);
+        }
+    }
+
+    private void accept(long now) throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, now));
+    }
+
+    private void read(Connection connection, long now) throws IOException {
+        final SocketChannel channel = (SocketChannel) connection.key.channel();
+        if (channel.read(connection.in) < 0) {
+            closeQuietly(connection.key);
+            return;
+        }
+        connection.lastActiveMillis = now;
+        processRequest(connection, now);
+    }
+
+    private void write(Connection connection) throws IOException {
+        final SocketChannel channel = (SocketChannel) connection.key.channel();
+        channel.write(connection.out);
+        if (connection.out.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        connection.out = null;
+        if (connection.closeAfterWrite) {
+            closeQuietly(connection.key);
+            return;
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        // A pipelined request may already be buffered.
+        processRequest(connection, connection.lastActiveMillis);
+    }
+
+    /**
+     * Serve the buffered request, if it is complete and the previous one was answered.
+     */
+    private void processRequest(Connection connection, long now) throws IOException {
+        if (connection.out != null || connection.waitingSinceMillis >= 0) {
+            return;
+        }
+        final ByteBuffer in = connection.in;
+        final int headerEnd = indexOfHeaderEnd(in.array(), in.position());
+        if (headerEnd < 0) {
+            if (!in.hasRemaining()) {
+                respond(connection, 431, "Request Header Fields Too Large", "{}", true);
+            }
+            return;
+        }
+        final String[] lines = new String(in.array(), 0, headerEnd, UTF_8).split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        boolean keepAlive = requestLine.length > 2 && "HTTP/1.1".equals(requestLine[2]);
+        int contentLength = 0;
+        for (int i = 1; i < lines.length; ++i) {
+            final int colon = lines[i].indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+            final String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.US);
+            if (name.equals("connection")) {
+                keepAlive = value.equals("keep-alive") || keepAlive && !value.equals("close");
+            } else if (name.equals("content-length")) {
+                try {
+                    contentLength = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+            }
+        }
+        // Checked before adding, so a huge length cannot overflow.
+        if (contentLength < 0 || contentLength > in.capacity() - headerEnd - 4) {
+            respond(connection, 413, "Payload Too Large", "{}", true);
+            return;
+        }
+        final int requestLength = headerEnd + 4 + contentLength;
+        if (in.position() < requestLength) {
+            return;
+        }
+        // The body, if any, is not used.
+        in.flip();
+        in.position(requestLength);
+        in.compact();
+        requestCount++;
+        route(connection, requestLine, !keepAlive, now);
+    }
+
+    private static int indexOfHeaderEnd(byte[] bytes, int length) {
+        for (int i = 0; i + 3 < length; ++i) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n'
+                    && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void route(Connection connection, String[] requestLine, boolean close, long now)
+            throws IOException {
+        if (requestLine.length < 2) {
+            respond(connection, 400, "Bad Request", "{}", true);
+            return;
+        }
+        if (!"GET".equals(requestLine[0])) {
+            respond(connection, 405, "Method Not Allowed", "{}", close);
+            return;
+        }
+        final String target = requestLine[1];
+        final int query = target.indexOf('?');
+        final String path = query < 0 ? target : target.substring(0, query);
+        if (!path.equals("/inventory")) {
+            respond(connection, 404, "Not Found", "{}", close);
+            return;
+        }
+        connection.closeAfterWrite = close;
+        if (query >= 0 && trigger != null
+                && ("&" + target.substring(query + 1) + "&").contains("&scan=1&")) {
+            connection.waitingSinceMillis = now;
+            waiting.add(connection);
+            try {
+                trigger.requestScan();
+            } catch (RuntimeException e) {
+                answer(connection, now);
+            }
+            return;
+        }
+        respondSnapshot(connection, now);
+    }
+
+    private void answerAll(long now) {
+        final List<Connection> answered = new ArrayList<>(waiting);
+        for (Connection connection : answered) {
+            answer(connection, now);
+        }
+    }
+
+    private void answer(Connection connection, long now) {
+        waiting.remove(connection);
+        connection.waitingSinceMillis = -1;
+        if (!connection.key.isValid()) {
+            return;
+        }
+        try {
+            respondSnapshot(connection, now);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(connection.key);
+        }
+    }
+
+    private void respondSnapshot(Connection connection, long now) throws IOException {
+        final Snapshot current = snapshot;
+        if (current == null) {
+            respond(connection, 503, "Service Unavailable", "{\"error\":\"no scan yet\"}",
+                    connection.closeAfterWrite);
+            return;
+        }
+        respond(connection, 200, "OK",
+                current.json + ",\"ageMs\":" + Math.max(0, now - current.timeMillis) + "}",
+                connection.closeAfterWrite);
+    }
+
+    private void respond(Connection connection, int status, String reason, String body,
+                         boolean close) throws IOException {
+        final byte[] content = body.getBytes(UTF_8);
+        final String header = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: " + (close ? "close" : "keep-alive") + "\r\n\r\n";
+        final byte[] head = header.getBytes(UTF_8);
+        connection.out = ByteBuffer.allocate(head.length + content.length);
+        connection.out.put(head).put(content).flip();
+        connection.closeAfterWrite = close;
+        write(connection);
+    }
+
+    /**
+     * Answer the requests that waited too long for a scan, and close idle connections.
+     */
+    private void expire(long now) {
+        for (Connection connection : new ArrayList<>(waiting)) {
+            if (now - connection.waitingSinceMillis >= scanTimeoutMillis) {
+                answer(connection, now);
+            }
+        }
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            final Object attachment = key.attachment();
+            if (!(attachment instanceof Connection)) {
+                continue;
+            }
+            final Connection connection = (Connection) attachment;
+            if (connection.out == null && connection.waitingSinceMillis < 0
+                    && now - connection.lastActiveMillis >= IDLE_TIMEOUT_MS) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        final Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+            waiting.remove(attachment);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // close quietly
+        }
+    }
+
+    /**
+     * Requests served so far.
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Stop serving and close every connection.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(SELECT_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * Single-entry, latest-frame-wins hand-off between a producer such as the camera and a slower
+ * consumer such as the classifier.
+ * <p>
+ * Offering a frame while another one is still waiting replaces it: the stale frame is handed
+ * back to the {@link Recycler} (for camera images, closed so the reader can reuse its buffer)
+ * and counted as dropped. The consumer therefore always works on the freshest frame and the
+ * camera never queues up behind inference.
+ *
+ * @param <T> frame type
+ */
+public class LatestFrameSlot<T> {
+
+    /**
+     * Releases frames that are dropped or left over when the slot is closed.
+     */
+    public interface Recycler<T> {
+        void recycle(T frame);
+    }
+
+    private final Recycler<T> recycler;
+
+    private T pending;
+    private boolean closed;
+    private long offeredCount;
+    private long droppedCount;
+
+    public LatestFrameSlot(Recycler<T> recycler) {
+        this.recycler = recycler;
+    }
+
+    /**
+     * Publish a new frame, replacing any frame that has not been taken yet.
+     *
+     * @return true if the frame was accepted, false if the slot is closed
+     */
+    public boolean offer(T frame) {
+        T stale;
+        synchronized (this) {
+            if (closed) {
+                stale = frame;
+            } else {
+                stale = pending;
+                pending = frame;
+                offeredCount++;
+                if (stale != null) {
+                    droppedCount++;
+                }
+                notifyAll();
+            }
+        }
+        if (stale != null) {
+            recycler.recycle(stale);
+        }
+        return stale != frame;
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @return the latest frame, or null once the slot has been closed
+     */
+    public synchronized T take() throws InterruptedException {
+        while (pending == null && !closed) {
+            wait();
+        }
+        final T frame = pending;
+        pending = null;
+        return frame;
+    }
+
+    /**
+     * Take the waiting frame if there is one, without blocking.
+     */
+    public synchronized T poll() {
+        final T frame = pending;
+        pending = null;
+        return frame;
+    }
+
+    /**
+     * Number of frames waiting to be taken, either 0 or 1.
+     */
+    public synchronized int size() {
+        return pending == null ? 0 : 1;
+    }
+
+    /**
+     * Frames replaced by a newer one before the consumer got to them.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Frames offered since the slot was created.
+     */
+    public synchronized long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * Close the slot, recycling the waiting frame and waking up the consumer.
+     */
+    public void close() {
+        T stale;
+        synchronized (this) {
+            closed = true;
+            stale = pending;
+            pending = null;
+            notifyAll();
+        }
+        if (stale != null) {
+            recycler.recycle(stale);
+        }
+    }
+}
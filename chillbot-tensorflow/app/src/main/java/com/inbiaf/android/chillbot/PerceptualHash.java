@@ -0,0 +1,113 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64 bit difference hash (dHash) of a model input, so near-identical frames can be recognized
+ * without running the model.
+ * <p>
+ * The brightness of the input is averaged down to a 9x8 grid, and each bit tells whether a cell
+ * is brighter than its right neighbour. Small changes in noise or exposure flip few bits, so
+ * two frames of the same scene are a small Hamming distance apart. The grid cell of every row
+ * and column is computed once in the constructor; hashing only sums and compares.
+ */
+public class PerceptualHash {
+
+    private static final int GRID_COLUMNS = 9;
+    private static final int GRID_ROWS = 8;
+
+    private final int width;
+    private final int height;
+    private final boolean quantized;
+
+    /* Grid column of every input column, and grid cell offset of every input row. */
+    private final int[] columnCell;
+    private final int[] rowCell;
+    private final float[] cellSums = new float[GRID_COLUMNS * GRID_ROWS];
+    private final int[] cellCounts = new int[GRID_COLUMNS * GRID_ROWS];
+
+    /**
+     * @param width     model input width
+     * @param height    model input height
+     * @param quantized input channels are uint8 instead of floats
+     */
+    public PerceptualHash(int width, int height, boolean quantized) {
+        this.width = width;
+        this.height = height;
+        this.quantized = quantized;
+        columnCell = new int[width];
+        rowCell = new int[height];
+        for (int x = 0; x < width; ++x) {
+            columnCell[x] = x * GRID_COLUMNS / width;
+        }
+        for (int y = 0; y < height; ++y) {
+            rowCell[y] = y * GRID_ROWS / height * GRID_COLUMNS;
+        }
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                cellCounts[rowCell[y] + columnCell[x]]++;
+            }
+        }
+    }
+
+    /**
+     * Size in bytes of one input.
+     */
+    public int getInputSize() {
+        return width * height * 3 * (quantized ? 1 : 4);
+    }
+
+    /**
+     * Hash of the input starting at {@code offset}; the buffer position is left untouched.
+     */
+    public long hash(ByteBuffer input, int offset) {
+        for (int i = 0; i < cellSums.length; ++i) {
+            cellSums[i] = 0;
+        }
+        int index = offset;
+        for (int y = 0; y < height; ++y) {
+            final int row = rowCell[y];
+            for (int x = 0; x < width; ++x) {
+                final float brightness;
+                if (quantized) {
+                    brightness = (input.get(index) & 0xFF) + (input.get(index + 1) & 0xFF)
+                            + (input.get(index + 2) & 0xFF);
+                    index += 3;
+                } else {
+                    brightness = input.getFloat(index) + input.getFloat(index + 4)
+                            + input.getFloat(index + 8);
+                    index += 12;
+                }
+                cellSums[row + columnCell[x]] += brightness;
+            }
+        }
+
+        long hash = 0;
+        int bit = 0;
+        for (int row = 0; row < GRID_ROWS; ++row) {
+            for (int column = 0; column < GRID_COLUMNS - 1; ++column) {
+                final int cell = row * GRID_COLUMNS + column;
+                if (cellSums[cell] * cellCounts[cell + 1]
+                        > cellSums[cell + 1] * cellCounts[cell]) {
+                    hash |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes {@code count} inputs written back to back, such as the tiles of a scan.
+     */
+    public void hash(ByteBuffer inputs, int count, long[] hashes) {
+        final int size = getInputSize();
+        for (int i = 0; i < count; ++i) {
+            hashes[i] = hash(inputs, i * size);
+        }
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
@@ -0,0 +1,275 @@
+package com.inbiaf.android.chillbot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FrameSource} that replays recorded frames instead of using the camera, so pipeline
+ * throughput and latency can be measured reproducibly without a device, and production frames
+ * can be replayed when investigating regressions.
+ * <p>
+ * A recording is one raw RGB file, or a directory of them replayed in name order. Each file
+ * holds one or more frames of {@code width * height} pixels, 3 bytes per pixel (R, G, B), rows
+ * top to bottom with no padding or header. Frames are delivered at a fixed rate, or as fast as
+ * the consumer releases them when the rate is 0.
+ * <p>
+ * Frames come from a small pool and go back to it when released, so replay does not allocate
+ * per frame. When every pooled frame is held by the consumer, the source waits for one.
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    /**
+     * Frames in flight: one waiting in the pipeline, one being preprocessed, one being read.
+     */
+    private static final int POOL_SIZE = 3;
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final List<File> files;
+    private final int width;
+    private final int height;
+    private final long frameIntervalNanos;
+    private final boolean loop;
+
+    private final BlockingQueue<RgbFrame> pool;
+    private final ByteBuffer readBuffer;
+
+    private Listener listener;
+    private Thread thread;
+    private volatile boolean running;
+
+    /* Guarded by this. */
+    private boolean streaming;
+    private int pendingRequests;
+
+    /* Replay position, only touched by the replay thread. */
+    private int fileIndex;
+    private FileChannel channel;
+
+    private long deliveredCount;
+
+    /**
+     * @param recording raw RGB file, or a directory of them
+     * @param fps       delivery rate while streaming, or 0 to deliver as fast as possible
+     * @param loop      start over at the end of the recording instead of ending the stream
+     * @throws IOException if the recording has no frames
+     */
+    public ReplayFrameSource(File recording, int width, int height, float fps, boolean loop)
+            throws IOException {
+        this.files = listRecording(recording);
+        if (files.isEmpty()) {
+            throw new IOException("No frames to replay in " + recording);
+        }
+        this.width = width;
+        this.height = height;
+        this.frameIntervalNanos = fps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+        this.loop = loop;
+
+        this.readBuffer = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL);
+        this.pool = new ArrayBlockingQueue<>(POOL_SIZE);
+        final LatestFrameSlot.Recycler<RgbFrame> owner = new LatestFrameSlot.Recycler<RgbFrame>() {
+            @Override
+            public void recycle(RgbFrame frame) {
+                pool.offer(frame);
+            }
+        };
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            pool.add(new RgbFrame(width, height, owner));
+        }
+    }
+
+    private static List<File> listRecording(File recording) {
+        if (!recording.isDirectory()) {
+            return recording.isFile()
+                    ? Arrays.asList(recording) : new ArrayList<File>();
+        }
+        final File[] entries = recording.listFiles();
+        final List<File> files = new ArrayList<>();
+        if (entries != null) {
+            Arrays.sort(entries);
+            for (File entry : entries) {
+                if (entry.isFile()) {
+                    files.add(entry);
+                }
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (running) {
+            return;
+        }
+        this.listener = listener;
+        running = true;
+        thread = new Thread(replayLoop, "replay-source");
+        thread.start();
+    }
+
+    @Override
+    public synchronized void requestFrame() {
+        pendingRequests++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void startStreaming() {
+        streaming = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void stopStreaming() {
+        streaming = false;
+    }
+
+    @Override
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    @Override
+    public void stop() {
+        final Thread replayThread;
+        synchronized (this) {
+            running = false;
+            replayThread = thread;
+            thread = null;
+            notifyAll();
+        }
+        if (replayThread != null) {
+            replayThread.interrupt();
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Frames delivered since the source was started.
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Block until a frame is requested or streaming is on.
+     *
+     * @return false once the source is stopped
+     */
+    private synchronized boolean awaitDemand() throws InterruptedException {
+        while (running && !streaming && pendingRequests == 0) {
+            wait();
+        }
+        if (pendingRequests > 0) {
+            pendingRequests--;
+        }
+        return running;
+    }
+
+    private synchronized void endOfStream() {
+        streaming = false;
+        pendingRequests = 0;
+    }
+
+    /**
+     * Read the next recorded frame into {@link #readBuffer}.
+     *
+     * @return false at the end of the recording
+     */
+    private boolean readNextFrame() throws IOException {
+        for (int attempts = 0; attempts <= files.size(); ) {
+            if (channel == null) {
+                if (fileIndex == files.size()) {
+                    if (!loop) {
+                        return false;
+                    }
+                    fileIndex = 0;
+                }
+                channel = new FileInputStream(files.get(fileIndex++)).getChannel();
+                attempts++;
+            }
+            readBuffer.clear();
+            while (readBuffer.hasRemaining() && channel.read(readBuffer) >= 0) {
+                // Keep reading until the frame is complete or the file ends.
+            }
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.flip();
+                return true;
+            }
+            // A trailing partial frame is ignored; move on to the next file.
+            channel.close();
+            channel = null;
+        }
+        return false;
+    }
+
+    private static void unpackRgb(ByteBuffer rgb, int[] argb) {
+        for (int i = 0; i < argb.length; ++i) {
+            final int r = rgb.get() & 0xFF;
+            final int g = rgb.get() & 0xFF;
+            final int b = rgb.get() & 0xFF;
+            argb[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            channel = null;
+        }
+    }
+
+    private final Runnable replayLoop = new Runnable() {
+        @Override
+        public void run() {
+            long nextDeadline = System.nanoTime();
+            try {
+                while (awaitDemand()) {
+                    if (frameIntervalNanos > 0 && isStreaming()) {
+                        final long delay = nextDeadline - System.nanoTime();
+                        if (delay > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delay);
+                        }
+                        nextDeadline = Math.max(nextDeadline + frameIntervalNanos,
+                                System.nanoTime());
+                    }
+                    if (!readNextFrame()) {
+                        endOfStream();
+                        listener.onEndOfStream();
+                        continue;
+                    }
+                    final RgbFrame frame = pool.take();
+                    unpackRgb(readBuffer, frame.getPixels());
+                    frame.setTimestampNanos(System.nanoTime());
+                    synchronized (ReplayFrameSource.this) {
+                        deliveredCount++;
+                    }
+                    listener.onFrame(frame);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                endOfStream();
+                listener.onEndOfStream();
+            } finally {
+                closeChannel();
+            }
+        }
+    };
+}
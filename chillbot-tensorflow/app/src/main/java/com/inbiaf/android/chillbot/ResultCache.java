@@ -0,0 +1,121 @@
+package com.inbiaf.android.chillbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small LRU cache of recent results keyed by {@link PerceptualHash}es, so a frame that looks
+ * like one seen recently reuses its result instead of running the model.
+ * <p>
+ * A key holds one hash per input, e.g. per tile of a scan. A lookup hits the most recently
+ * used entry whose every hash is within {@code maxDistance} bits of the frame's, as long as it
+ * is not older than {@code maxAgeNanos}; expired entries are dropped, so the scene is really
+ * looked at again from time to time. Thread-safe.
+ */
+public class ResultCache<V> {
+
+    private static final class Entry<V> {
+        final long[] hashes;
+        final V value;
+        final long storedNanos;
+
+        Entry(long[] hashes, V value, long storedNanos) {
+            this.hashes = hashes;
+            this.value = value;
+            this.storedNanos = storedNanos;
+        }
+    }
+
+    private final int capacity;
+    private final int maxDistance;
+    private final long maxAgeNanos;
+    /**
+     * Most recently used first.
+     */
+    private final List<Entry<V>> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity    entries kept before the least recently used one is evicted
+     * @param maxDistance most bits a hash may differ by and still match
+     * @param maxAgeNanos how long a result may be reused
+     */
+    public ResultCache(int capacity, int maxDistance, long maxAgeNanos) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.maxAgeNanos = maxAgeNanos;
+        entries = new ArrayList<>(capacity + 1);
+    }
+
+    /**
+     * Result of a frame like the one with these hashes, or null on a miss.
+     *
+     * @param hashes    one hash per input of the frame; only the first {@code count} are used
+     * @param nowNanos  current time, on the clock used for {@link #put}
+     */
+    public synchronized V get(long[] hashes, int count, long nowNanos) {
+        for (int i = 0; i < entries.size(); ++i) {
+            final Entry<V> entry = entries.get(i);
+            if (nowNanos - entry.storedNanos > maxAgeNanos) {
+                entries.remove(i--);
+                continue;
+            }
+            if (matches(entry.hashes, hashes, count)) {
+                if (i > 0) {
+                    entries.remove(i);
+                    entries.add(0, entry);
+                }
+                hits++;
+                return entry.value;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private boolean matches(long[] cached, long[] hashes, int count) {
+        if (cached.length != count) {
+            return false;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (PerceptualHash.distance(cached[i], hashes[i]) > maxDistance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remember the result of a frame. The hashes are copied.
+     */
+    public synchronized void put(long[] hashes, int count, V value, long nowNanos) {
+        entries.add(0, new Entry<>(Arrays.copyOf(hashes, count), value, nowNanos));
+        if (entries.size() > capacity) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    /**
+     * Forget every result, e.g. when the model changed.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
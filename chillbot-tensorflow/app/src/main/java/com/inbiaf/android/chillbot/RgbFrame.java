@@ -0,0 +1,54 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * Frame held as packed ARGB pixels, such as the ones streamed by {@link ReplayFrameSource}.
+ * Instances are pooled by their source and go back to it on {@link #release()}.
+ */
+public class RgbFrame implements Frame {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final LatestFrameSlot.Recycler<RgbFrame> owner;
+    private long timestampNanos;
+
+    public RgbFrame(int width, int height, LatestFrameSlot.Recycler<RgbFrame> owner) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.owner = owner;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    void setTimestampNanos(long timestampNanos) {
+        this.timestampNanos = timestampNanos;
+    }
+
+    /**
+     * Pixels, row stride equal to the width.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    @Override
+    public void release() {
+        if (owner != null) {
+            owner.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-pass crop, resize and normalize from packed ARGB source pixels to the model input.
+ * <p>
+ * The center square of the source, or any other crop window, is bilinearly sampled down to
+ * the model size and each channel is written straight into the input buffer, either as a
+ * normalized float or as a raw uint8 for quantized models. Source coordinates and interpolation
+ * weights are computed once in the constructor, and float normalization goes through a 256
+ * entry table, so the per-frame loop is integer-only with no divisions.
+ */
+public class RgbToTensorKernel {
+
+    /**
+     * Interpolation weights are fixed point with this many fraction bits.
+     */
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int ROUNDING = 1 << (2 * WEIGHT_BITS - 1);
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final boolean quantized;
+
+    /* Left/right source columns and weight of the right column, per output column. */
+    private final int[] x0;
+    private final int[] x1;
+    private final int[] wx;
+    /* Top/bottom source row offsets and weight of the bottom row, per output row. */
+    private final int[] y0;
+    private final int[] y1;
+    private final int[] wy;
+
+    /**
+     * Normalized float value of every 8 bit channel value.
+     */
+    private final float[] normalized = new float[256];
+
+    /**
+     * @param srcWidth  width of the source pixels
+     * @param srcHeight height of the source pixels
+     * @param dstWidth  model input width
+     * @param dstHeight model input height
+     * @param quantized write uint8 channels instead of normalized floats
+     * @param mean      value subtracted from each channel, float output only
+     * @param std       value each channel is divided by, float output only
+     */
+    public RgbToTensorKernel(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                             boolean quantized, float mean, float std) {
+        // We only want the center square out of the original rectangle.
+        this(srcWidth, srcHeight,
+                (srcWidth - Math.min(srcWidth, srcHeight)) / 2,
+                (srcHeight - Math.min(srcWidth, srcHeight)) / 2,
+                Math.min(srcWidth, srcHeight), Math.min(srcWidth, srcHeight),
+                dstWidth, dstHeight, quantized, mean, std);
+    }
+
+    /**
+     * Kernel sampling the given crop window of the source instead of its center square.
+     *
+     * @param cropLeft   left edge of the window in the source
+     * @param cropTop    top edge of the window in the source
+     * @param cropWidth  window width, the window must lie inside the source
+     * @param cropHeight window height
+     */
+    public RgbToTensorKernel(int srcWidth, int srcHeight,
+                             int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                             int dstWidth, int dstHeight,
+                             boolean quantized, float mean, float std) {
+        if (cropLeft < 0 || cropTop < 0
+                || cropLeft + cropWidth > srcWidth || cropTop + cropHeight > srcHeight) {
+            throw new IllegalArgumentException("Crop window outside of the source");
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.quantized = quantized;
+
+        x0 = new int[dstWidth];
+        x1 = new int[dstWidth];
+        wx = new int[dstWidth];
+        buildAxis(cropLeft, cropWidth, dstWidth, 1, x0, x1, wx);
+
+        y0 = new int[dstHeight];
+        y1 = new int[dstHeight];
+        wy = new int[dstHeight];
+        buildAxis(cropTop, cropHeight, dstHeight, srcWidth, y0, y1, wy);
+
+        for (int i = 0; i < normalized.length; ++i) {
+            normalized[i] = (i - mean) / std;
+        }
+    }
+
+    /**
+     * Fills the coordinate tables for one axis. Output sample {@code i} is centered at source
+     * coordinate {@code offset + (i + 0.5) * srcSize / dstSize - 0.5}.
+     */
+    private static void buildAxis(int offset, int srcSize, int dstSize, int stride,
+                                  int[] lo, int[] hi, int[] weight) {
+        final float scale = (float) srcSize / dstSize;
+        for (int i = 0; i < dstSize; ++i) {
+            float s = (i + 0.5f) * scale - 0.5f;
+            if (s < 0) {
+                s = 0;
+            }
+            int s0 = (int) s;
+            if (s0 > srcSize - 1) {
+                s0 = srcSize - 1;
+            }
+            final int s1 = Math.min(s0 + 1, srcSize - 1);
+            lo[i] = (offset + s0) * stride;
+            hi[i] = (offset + s1) * stride;
+            weight[i] = Math.round((s - s0) * WEIGHT_ONE);
+        }
+    }
+
+    public int getSourceWidth() {
+        return srcWidth;
+    }
+
+    public int getSourceHeight() {
+        return srcHeight;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * Number of bytes {@link #process} writes into the output buffer.
+     */
+    public int getOutputSize() {
+        return (quantized ? 1 : 4) * dstWidth * dstHeight * 3;
+    }
+
+    /**
+     * Writes the model input for one frame into {@code out}, starting at its current position.
+     *
+     * @param argb source pixels, packed ARGB, row stride equal to the source width
+     * @param out  model input buffer, at least {@link #getOutputSize()} bytes remaining
+     */
+    public void process(int[] argb, ByteBuffer out) {
+        final int start = out.position();
+        process(argb, out, start);
+        out.position(start + getOutputSize());
+    }
+
+    /**
+     * Writes the model input for one frame into {@code out} at absolute byte offset
+     * {@code offset}, leaving the buffer position untouched. Several kernels can write disjoint
+     * ranges of the same buffer concurrently this way.
+     */
+    public void process(int[] argb, ByteBuffer out, int offset) {
+        int index = offset;
+        for (int j = 0; j < dstHeight; ++j) {
+            final int top = y0[j];
+            final int bottom = y1[j];
+            final int fy = wy[j];
+            final int gy = WEIGHT_ONE - fy;
+            for (int i = 0; i < dstWidth; ++i) {
+                final int left = x0[i];
+                final int right = x1[i];
+                final int fx = wx[i];
+                final int gx = WEIGHT_ONE - fx;
+
+                final int p00 = argb[top + left];
+                final int p01 = argb[top + right];
+                final int p10 = argb[bottom + left];
+                final int p11 = argb[bottom + right];
+
+                final int r = lerp(p00 >> 16, p01 >> 16, p10 >> 16, p11 >> 16, gx, fx, gy, fy);
+                final int g = lerp(p00 >> 8, p01 >> 8, p10 >> 8, p11 >> 8, gx, fx, gy, fy);
+                final int b = lerp(p00, p01, p10, p11, gx, fx, gy, fy);
+
+                if (quantized) {
+                    out.put(index, (byte) r);
+                    out.put(index + 1, (byte) g);
+                    out.put(index + 2, (byte) b);
+                    index += 3;
+                } else {
+                    out.putFloat(index, normalized[r]);
+                    out.putFloat(index + 4, normalized[g]);
+                    out.putFloat(index + 8, normalized[b]);
+                    index += 12;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bilinear interpolation of the low byte of four packed samples.
+     */
+    private static int lerp(int c00, int c01, int c10, int c11,
+                            int gx, int fx, int gy, int fy) {
+        final int top = (c00 & 0xFF) * gx + (c01 & 0xFF) * fx;
+        final int bottom = (c10 & 0xFF) * gx + (c11 & 0xFF) * fx;
+        return (top * gy + bottom * fy + ROUNDING) >> (2 * WEIGHT_BITS);
+    }
+}
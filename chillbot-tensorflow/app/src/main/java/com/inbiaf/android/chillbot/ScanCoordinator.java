@@ -0,0 +1,200 @@
+package com.inbiaf.android.chillbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure only one scan runs at a time, however many button presses, voice queries or
+ * timers ask for one.
+ * <p>
+ * A request made while a scan is running joins it and gets its result. A request made shortly
+ * after a scan completed, within the freshness window, is answered with that result right away.
+ * Only otherwise does a request start a new scan. A scan still running past its timeout, for
+ * example because its frames were lost, fails: everyone waiting gets null, from
+ * {@link #expireOverdue()} or from the next request, which then starts a new scan.
+ * Thread-safe.
+ */
+public class ScanCoordinator<R> {
+
+    /**
+     * Starts a scan; {@link ScanCoordinator#complete} must be called when it ends.
+     */
+    public interface Scanner {
+        void startScan();
+    }
+
+    /**
+     * Receives the result of a scan, or null if it failed or timed out, on the thread that
+     * ended it, or on the requesting thread for a fresh result.
+     */
+    public interface Listener<R> {
+        void onScanResult(R result);
+    }
+
+    /**
+     * How a request was served.
+     */
+    public enum Outcome {
+        /** A new scan was started. */
+        STARTED,
+        /** The request joined the scan already running. */
+        JOINED,
+        /** The last result was fresh enough and was delivered right away. */
+        FRESH
+    }
+
+    private final Scanner scanner;
+    private final long freshnessNanos;
+    private final long timeoutNanos;
+    private final List<Listener<R>> waiting = new ArrayList<>();
+
+    private boolean scanning;
+    private long scanStartNanos;
+    private R lastResult;
+    private long lastResultNanos;
+    private long requestCount;
+    private long scanCount;
+    private long timeoutCount;
+
+    /**
+     * @param freshness how long a completed result answers new requests; 0 always scans
+     * @param timeout   how long a scan may run before it is given up
+     */
+    public ScanCoordinator(Scanner scanner, long freshness, long timeout, TimeUnit unit) {
+        this.scanner = scanner;
+        this.freshnessNanos = unit.toNanos(freshness);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Ask for a scan result.
+     *
+     * @param listener gets the result, or null if the caller only wants a scan to happen. A
+     *                 listener already waiting for the running scan is not added twice.
+     */
+    public Outcome requestScan(Listener<R> listener) {
+        final R fresh;
+        final List<Listener<R>> abandoned;
+        synchronized (this) {
+            requestCount++;
+            final long now = System.nanoTime();
+            if (scanning && now - scanStartNanos < timeoutNanos) {
+                addListener(listener);
+                return Outcome.JOINED;
+            }
+            if (scanning) {
+                timeoutCount++;
+                abandoned = endScan();
+            } else {
+                abandoned = null;
+            }
+            if (lastResult != null && freshnessNanos > 0
+                    && now - lastResultNanos <= freshnessNanos) {
+                fresh = lastResult;
+            } else {
+                fresh = null;
+                scanning = true;
+                scanStartNanos = now;
+                scanCount++;
+                addListener(listener);
+            }
+        }
+        if (abandoned != null) {
+            notifyListeners(abandoned, null);
+        }
+        if (fresh != null) {
+            if (listener != null) {
+                listener.onScanResult(fresh);
+            }
+            return Outcome.FRESH;
+        }
+        try {
+            scanner.startScan();
+        } catch (RuntimeException e) {
+            complete(null);
+            throw e;
+        }
+        return Outcome.STARTED;
+    }
+
+    private void addListener(Listener<R> listener) {
+        if (listener != null && !waiting.contains(listener)) {
+            waiting.add(listener);
+        }
+    }
+
+    /**
+     * End the running scan and hand its result to everyone waiting for it.
+     *
+     * @param result the result, or null if the scan failed; a failed scan is not reused
+     */
+    public void complete(R result) {
+        final List<Listener<R>> listeners;
+        synchronized (this) {
+            if (!scanning) {
+                return;
+            }
+            if (result != null) {
+                lastResult = result;
+                lastResultNanos = System.nanoTime();
+            }
+            listeners = endScan();
+        }
+        notifyListeners(listeners, result);
+    }
+
+    /**
+     * Fail the running scan if it is past its timeout; call once the timeout of a scan started
+     * is up. Its listeners get null.
+     *
+     * @return true if a scan was given up
+     */
+    public boolean expireOverdue() {
+        final List<Listener<R>> listeners;
+        synchronized (this) {
+            if (!scanning || System.nanoTime() - scanStartNanos < timeoutNanos) {
+                return false;
+            }
+            timeoutCount++;
+            listeners = endScan();
+        }
+        notifyListeners(listeners, null);
+        return true;
+    }
+
+    private List<Listener<R>> endScan() {
+        scanning = false;
+        final List<Listener<R>> listeners = new ArrayList<>(waiting);
+        waiting.clear();
+        return listeners;
+    }
+
+    private void notifyListeners(List<Listener<R>> listeners, R result) {
+        for (Listener<R> listener : listeners) {
+            listener.onScanResult(result);
+        }
+    }
+
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Requests made so far, whether they started a scan or not.
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized long getScanCount() {
+        return scanCount;
+    }
+
+    /**
+     * Scans given up past their timeout.
+     */
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+}
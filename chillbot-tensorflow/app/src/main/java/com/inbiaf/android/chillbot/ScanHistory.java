@@ -0,0 +1,270 @@
+package com.inbiaf.android.chillbot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * History of every classification result, kept on device storage in a memory-mapped ring file
+ * of fixed-width records: a timestamp, then the inventory in its compact form, see
+ * {@link Inventory#writeTo}. Once the file is full the oldest records are overwritten.
+ * <p>
+ * Recording writes one record in place without allocating, so every streamed frame can be
+ * kept. Records are in timestamp order, which queries use to find the start of a time range by
+ * binary search and then scan it. Records are not synced one by one; the last few may be lost
+ * on power loss. A closed history records and finds nothing, as its file may be reopened
+ * with another layout. Thread-safe.
+ */
+public class ScanHistory implements Closeable {
+
+    private static final int MAGIC = 0x43485354;
+    /* File header: magic, label count, record size, slot count, records ever written. */
+    private static final int HEADER_SIZE = 24;
+    private static final int COUNT_OFFSET = 16;
+    /* Record: timestamp, inventory, padded to 8 bytes. */
+    private static final int INVENTORY_OFFSET = 8;
+    private static final int MAX_LABELS = 4096;
+
+    /**
+     * Receives the records of a range scan, oldest first.
+     */
+    public interface Visitor {
+        /**
+         * @param entry the current record; only valid during the call
+         * @return false to stop the scan
+         */
+        boolean visit(Entry entry);
+    }
+
+    /**
+     * A record read in place from the file.
+     */
+    public final class Entry {
+        private int offset;
+
+        public long getTimestampMillis() {
+            return map.getLong(offset);
+        }
+
+        public boolean has(int label) {
+            return isPresent(offset, label);
+        }
+
+        /**
+         * Confidence of a label, 0 to 1 in steps of 1/255.
+         */
+        public float getConfidence(int label) {
+            return (map.get(offset + INVENTORY_OFFSET + presenceBytes + label) & 0xFF) / 255.0f;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int labelCount;
+    private final int presenceBytes;
+    private final int recordSize;
+    private final int slotCount;
+    /* Reused under the lock, by queries and to write records. */
+    private final Entry entry = new Entry();
+    private final ByteBuffer writer;
+
+    private long count;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean closed;
+
+    /**
+     * Opens the history in {@code path}, creating it if needed. A file made for another label
+     * count or size is started over.
+     *
+     * @param labelCount number of model labels scored in each record
+     * @param slotCount  records kept before the oldest are overwritten
+     */
+    public ScanHistory(File path, int labelCount, int slotCount) throws IOException {
+        if (labelCount < 0 || labelCount > MAX_LABELS || slotCount < 1) {
+            throw new IllegalArgumentException("Invalid history layout");
+        }
+        this.labelCount = labelCount;
+        presenceBytes = (labelCount + 7) >>> 3;
+        recordSize = (INVENTORY_OFFSET + Inventory.serializedSize(labelCount) + 7) & ~7;
+        this.slotCount = slotCount;
+        final long size = HEADER_SIZE + (long) recordSize * slotCount;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("History too large");
+        }
+        file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (map.getInt(0) != MAGIC || map.getInt(4) != labelCount
+                || map.getInt(8) != recordSize || map.getInt(12) != slotCount) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, labelCount);
+            map.putInt(8, recordSize);
+            map.putInt(12, slotCount);
+            map.putLong(COUNT_OFFSET, 0);
+        }
+        writer = map.duplicate();
+        count = map.getLong(COUNT_OFFSET);
+        if (count > 0) {
+            lastTimestamp = map.getLong(offsetOf(count - 1));
+        }
+    }
+
+    /**
+     * Record one result. A timestamp older than the last recorded one, after a clock change,
+     * is recorded as the last one so records stay in order.
+     *
+     * @return false if the inventory is for another number of labels and was not recorded
+     */
+    public synchronized boolean record(long timestampMillis, Inventory inventory) {
+        if (closed || inventory.size() != labelCount) {
+            return false;
+        }
+        if (timestampMillis < lastTimestamp) {
+            timestampMillis = lastTimestamp;
+        }
+        final int offset = offsetOf(count);
+        map.putLong(offset, timestampMillis);
+        writer.position(offset + INVENTORY_OFFSET);
+        inventory.writeTo(writer);
+        lastTimestamp = timestampMillis;
+        count++;
+        map.putLong(COUNT_OFFSET, count);
+        return true;
+    }
+
+    /**
+     * Visit the records from {@code fromMillis} inclusive to {@code toMillis} exclusive, oldest
+     * first.
+     *
+     * @return number of records visited
+     */
+    public synchronized int scan(long fromMillis, long toMillis, Visitor visitor) {
+        int visited = 0;
+        if (closed) {
+            return visited;
+        }
+        for (long index = firstAtOrAfter(fromMillis); index < count; ++index) {
+            entry.offset = offsetOf(index);
+            if (entry.getTimestampMillis() >= toMillis) {
+                break;
+            }
+            visited++;
+            if (!visitor.visit(entry)) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * When a label was last present, e.g. when Perrier was last seen.
+     *
+     * @return the timestamp, or -1 if no record kept has it
+     */
+    public synchronized long lastSeen(int label) {
+        if (closed) {
+            return -1;
+        }
+        for (long index = count - 1; index >= oldest(); --index) {
+            final int offset = offsetOf(index);
+            if (isPresent(offset, label)) {
+                return map.getLong(offset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Share of the records from {@code fromMillis} inclusive to {@code toMillis} exclusive in
+     * which a label is present, e.g. how much of the last day Perrier was in stock.
+     *
+     * @return 0 to 1, or NaN if there is no record in the range
+     */
+    public synchronized float presence(int label, long fromMillis, long toMillis) {
+        int total = 0;
+        int present = 0;
+        if (closed) {
+            return Float.NaN;
+        }
+        for (long index = firstAtOrAfter(fromMillis); index < count; ++index) {
+            final int offset = offsetOf(index);
+            if (map.getLong(offset) >= toMillis) {
+                break;
+            }
+            total++;
+            if (isPresent(offset, label)) {
+                present++;
+            }
+        }
+        return total == 0 ? Float.NaN : (float) present / total;
+    }
+
+    /**
+     * Index of the oldest record at or after {@code timestampMillis}, or {@link #count} if
+     * there is none.
+     */
+    private long firstAtOrAfter(long timestampMillis) {
+        long low = oldest();
+        long high = count;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (map.getLong(offsetOf(middle)) < timestampMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean isPresent(int offset, int label) {
+        return (map.get(offset + INVENTORY_OFFSET + (label >>> 3)) & (1 << (label & 7))) != 0;
+    }
+
+    private long oldest() {
+        return Math.max(0, count - slotCount);
+    }
+
+    private int offsetOf(long index) {
+        return HEADER_SIZE + (int) (index % slotCount) * recordSize;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Records ever written, including the ones overwritten since.
+     */
+    public synchronized long getRecordCount() {
+        return count;
+    }
+
+    /**
+     * Records kept.
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, slotCount);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        map.force();
+        file.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * One fridge scan over several frames. Each frame's inventory is smoothed over time by an
+ * {@link InventoryFilter} that starts with the scan, and the scan ends as soon as the smoothed
+ * inventory is stable, or after a maximum number of frames for a scene that never settles.
+ * <p>
+ * Frames are added from one thread at a time; the outcome may be read from any thread once
+ * {@link #add} returned true.
+ */
+public class ScanSession {
+
+    private final int maxFrames;
+    private final InventoryFilter filter;
+    private final long startNanos;
+    private volatile Inventory result;
+    private volatile long durationNanos;
+
+    /**
+     * @param maxFrames            frames after which the scan ends even if not converged
+     * @param factor               smoothing step per {@code frameIntervalNanos}
+     * @param frameIntervalNanos   nominal time between frames
+     * @param convergenceThreshold largest frame-to-frame change of any label's vote that
+     *                             counts as stable
+     * @param convergenceFrames    stable frames in a row that end the scan
+     */
+    public ScanSession(int maxFrames, float factor, long frameIntervalNanos,
+                       float convergenceThreshold, int convergenceFrames) {
+        this.maxFrames = maxFrames;
+        this.filter = new InventoryFilter(1, factor, frameIntervalNanos, convergenceThreshold,
+                convergenceFrames);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds the inventory seen in one frame.
+     *
+     * @return true once the scan is done, see {@link #getResult()}
+     */
+    public boolean add(Inventory inventory, long timestampNanos) {
+        if (result != null) {
+            return true;
+        }
+        final Inventory smoothed = filter.update(inventory, timestampNanos);
+        if (!filter.isConverged() && filter.getUpdateCount() < maxFrames) {
+            return false;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        result = smoothed;
+        return true;
+    }
+
+    /**
+     * Smoothed inventory of the scan, or null while it is still running.
+     */
+    public Inventory getResult() {
+        return result;
+    }
+
+    public int getFrameCount() {
+        return filter.getUpdateCount();
+    }
+
+    /**
+     * Whether the scan ended because its answer was stable rather than at the frame limit.
+     */
+    public boolean isConverged() {
+        return filter.isConverged();
+    }
+
+    /**
+     * Time from the start of the scan until it ended.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+}
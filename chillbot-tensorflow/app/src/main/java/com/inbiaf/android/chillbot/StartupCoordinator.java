@@ -0,0 +1,191 @@
+package com.inbiaf.android.chillbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent startup tasks in parallel behind a readiness gate, and measures how long
+ * the app takes to become ready and to produce its first answer.
+ * <p>
+ * Tasks are registered with {@link #addTask} and all started at once by {@link #start}. The
+ * gate opens when every task has finished, whether it succeeded or not; failures are recorded
+ * so the app can carry on without the failed part. All times are measured from {@link #start}.
+ */
+public class StartupCoordinator {
+
+    /**
+     * One piece of startup work, run on its own thread.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private final Map<String, Long> durationsNanos =
+            Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+    private final Map<String, Throwable> failures =
+            Collections.synchronizedMap(new LinkedHashMap<String, Throwable>());
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final List<Runnable> readyCallbacks = new ArrayList<>();
+    /**
+     * Set, under the callbacks lock, once the callbacks to run have been taken.
+     */
+    private boolean callbacksTaken;
+
+    private long startNanos;
+    private volatile long readyNanos = -1;
+    private volatile long firstAnswerNanos = -1;
+    private boolean started;
+
+    /**
+     * Register a task. Must be called before {@link #start}.
+     */
+    public synchronized void addTask(String name, Task task) {
+        if (started) {
+            throw new IllegalStateException("Startup already started");
+        }
+        tasks.put(name, task);
+    }
+
+    /**
+     * Run {@code callback} once every task has finished, on the thread that finished last, or
+     * right away if that already happened. Callbacks registered in time have run by the time
+     * {@link #awaitReady} returns.
+     */
+    public void whenReady(Runnable callback) {
+        synchronized (readyCallbacks) {
+            if (!callbacksTaken) {
+                readyCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Start every task on its own thread.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        startNanos = System.nanoTime();
+        if (tasks.isEmpty()) {
+            onAllTasksDone();
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        final AtomicInteger remaining = new AtomicInteger(tasks.size());
+        for (final Map.Entry<String, Task> entry : tasks.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long taskStart = System.nanoTime();
+                    try {
+                        entry.getValue().run();
+                    } catch (Throwable t) {
+                        failures.put(entry.getKey(), t);
+                    } finally {
+                        durationsNanos.put(entry.getKey(), System.nanoTime() - taskStart);
+                        if (remaining.decrementAndGet() == 0) {
+                            onAllTasksDone();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    private void onAllTasksDone() {
+        final List<Runnable> callbacks;
+        synchronized (readyCallbacks) {
+            readyNanos = System.nanoTime() - startNanos;
+            callbacksTaken = true;
+            callbacks = new ArrayList<>(readyCallbacks);
+            readyCallbacks.clear();
+        }
+        try {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        } finally {
+            ready.countDown();
+        }
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Wait for the readiness gate to open.
+     *
+     * @return false if it did not open in time
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * Record that the first answer was delivered. Only the first call counts.
+     *
+     * @return true if this was the first answer
+     */
+    public synchronized boolean markFirstAnswer() {
+        if (!started || firstAnswerNanos >= 0) {
+            return false;
+        }
+        firstAnswerNanos = System.nanoTime() - startNanos;
+        return true;
+    }
+
+    /**
+     * Time from start until every task finished, or -1 if not ready yet.
+     */
+    public long getTimeToReadyMillis() {
+        return readyNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(readyNanos);
+    }
+
+    /**
+     * Time from start until the first answer, or -1 if there was none yet.
+     */
+    public long getTimeToFirstAnswerMillis() {
+        return firstAnswerNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(firstAnswerNanos);
+    }
+
+    /**
+     * Duration of each finished task in milliseconds, in registration order.
+     */
+    public Map<String, Long> getTaskDurationsMillis() {
+        final Map<String, Long> millis = new LinkedHashMap<>();
+        synchronized (durationsNanos) {
+            for (String name : tasks.keySet()) {
+                final Long nanos = durationsNanos.get(name);
+                if (nanos != null) {
+                    millis.put(name, TimeUnit.NANOSECONDS.toMillis(nanos));
+                }
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Tasks that threw, with what they threw.
+     */
+    public Map<String, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<>(failures);
+        }
+    }
+}
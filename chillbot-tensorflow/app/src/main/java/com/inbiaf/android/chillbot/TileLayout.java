@@ -0,0 +1,83 @@
+package com.inbiaf.android.chillbot;
+
+/**
+ * Covers a whole frame with overlapping square windows, so objects at the edges of the shelf
+ * are seen and not only the ones in the center square.
+ * <p>
+ * Windows are spread evenly along each axis: the first touches the left/top edge, the last the
+ * right/bottom edge, and neighbours overlap by at least the requested amount, so an object
+ * straddling one boundary is fully inside some window.
+ */
+public class TileLayout {
+
+    private final int frameWidth;
+    private final int frameHeight;
+    private final int windowSize;
+    private final int[] lefts;
+    private final int[] tops;
+
+    /**
+     * @param windowSize side of each window in frame pixels, at most the smaller frame side
+     * @param minOverlap minimum overlap between neighbouring windows in frame pixels
+     */
+    public TileLayout(int frameWidth, int frameHeight, int windowSize, int minOverlap) {
+        if (windowSize > Math.min(frameWidth, frameHeight) || minOverlap >= windowSize) {
+            throw new IllegalArgumentException("Window " + windowSize + " overlap " + minOverlap
+                    + " does not fit a " + frameWidth + "x" + frameHeight + " frame");
+        }
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.windowSize = windowSize;
+
+        final int[] columns = positions(frameWidth, windowSize, minOverlap);
+        final int[] rows = positions(frameHeight, windowSize, minOverlap);
+        lefts = new int[columns.length * rows.length];
+        tops = new int[lefts.length];
+        int tile = 0;
+        for (int top : rows) {
+            for (int left : columns) {
+                lefts[tile] = left;
+                tops[tile] = top;
+                tile++;
+            }
+        }
+    }
+
+    private static int[] positions(int size, int window, int minOverlap) {
+        final int span = size - window;
+        final int stride = window - minOverlap;
+        final int count = span == 0 ? 1 : (span + stride - 1) / stride + 1;
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; ++i) {
+            positions[i] = count == 1 ? 0 : Math.round((float) i * span / (count - 1));
+        }
+        return positions;
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getTileCount() {
+        return lefts.length;
+    }
+
+    /**
+     * Left edge of a window, tiles are numbered row by row.
+     */
+    public int getLeft(int tile) {
+        return lefts[tile];
+    }
+
+    public int getTop(int tile) {
+        return tops[tile];
+    }
+}
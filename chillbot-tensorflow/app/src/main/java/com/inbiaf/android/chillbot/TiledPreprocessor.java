@@ -0,0 +1,158 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes every window of a {@link TileLayout} into one batched model input, tile {@code i} at
+ * byte offset {@code i * getTileSize()}.
+ * <p>
+ * Each tile has its own {@link RgbToTensorKernel} built up front, and tiles are prepared in
+ * parallel on the given executor, with the calling thread taking a share of the work. The
+ * per-tile tasks are allocated once and handed to the executor again for every frame, so the
+ * only per-frame allocation is whatever the executor needs to queue them, such as one queue
+ * node per tile for a {@link java.util.concurrent.ThreadPoolExecutor}. Without an executor a
+ * frame allocates nothing.
+ * <p>
+ * Not thread-safe: {@link #process} must not be called concurrently.
+ */
+public class TiledPreprocessor {
+
+    private final TileLayout layout;
+    private final RgbToTensorKernel[] kernels;
+    private final Runnable[] tasks;
+    private final Executor executor;
+    private final int tileSize;
+
+    /* Current frame, published to the workers through the executor hand-off. */
+    private int[] frameArgb;
+    private ByteBuffer frameOut;
+    private int frameOffset;
+
+    private final Object lock = new Object();
+    private int pendingTiles;
+    private volatile long lastPrepareNanos;
+
+    /**
+     * @param executor runs tile preparation; tiles are prepared on the calling thread only if
+     *                 this is null
+     */
+    public TiledPreprocessor(TileLayout layout, int dstWidth, int dstHeight, boolean quantized,
+                             float mean, float std, Executor executor) {
+        this.layout = layout;
+        this.executor = executor;
+        this.kernels = new RgbToTensorKernel[layout.getTileCount()];
+        this.tasks = new Runnable[kernels.length];
+        for (int i = 0; i < kernels.length; ++i) {
+            kernels[i] = new RgbToTensorKernel(layout.getFrameWidth(), layout.getFrameHeight(),
+                    layout.getLeft(i), layout.getTop(i),
+                    layout.getWindowSize(), layout.getWindowSize(),
+                    dstWidth, dstHeight, quantized, mean, std);
+            tasks[i] = new TileTask(i);
+        }
+        this.tileSize = kernels[0].getOutputSize();
+    }
+
+    public TileLayout getLayout() {
+        return layout;
+    }
+
+    public int getTileCount() {
+        return kernels.length;
+    }
+
+    /**
+     * Size in bytes of one tile in the batched input.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Size in bytes of the whole batched input.
+     */
+    public int getOutputSize() {
+        return tileSize * kernels.length;
+    }
+
+    /**
+     * Time spent preparing the last frame, in nanoseconds.
+     */
+    public long getLastPrepareNanos() {
+        return lastPrepareNanos;
+    }
+
+    /**
+     * Writes all tiles of a frame into {@code out}, starting at its current position, and
+     * advances the position past them.
+     *
+     * @param argb frame pixels, packed ARGB, sized as the layout's frame
+     */
+    public void process(int[] argb, ByteBuffer out) {
+        final long start = System.nanoTime();
+        frameArgb = argb;
+        frameOut = out;
+        frameOffset = out.position();
+
+        if (executor == null) {
+            for (RgbToTensorKernel kernel : kernels) {
+                kernel.process(argb, out);
+            }
+        } else {
+            synchronized (lock) {
+                pendingTiles = kernels.length - 1;
+            }
+            for (int i = 1; i < tasks.length; ++i) {
+                executor.execute(tasks[i]);
+            }
+            kernels[0].process(argb, out, frameOffset);
+            awaitTiles();
+            out.position(frameOffset + getOutputSize());
+        }
+
+        frameArgb = null;
+        frameOut = null;
+        lastPrepareNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Wait for the workers to finish. Tiles take milliseconds, so an interrupt is only
+     * recorded: returning early would let the workers race with the next frame.
+     */
+    private void awaitTiles() {
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (pendingTiles > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class TileTask implements Runnable {
+        private final int tile;
+
+        TileTask(int tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void run() {
+            try {
+                kernels[tile].process(frameArgb, frameOut, frameOffset + tile * tileSize);
+            } finally {
+                synchronized (lock) {
+                    if (--pendingTiles == 0) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
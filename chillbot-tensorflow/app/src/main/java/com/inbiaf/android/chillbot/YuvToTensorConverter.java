@@ -0,0 +1,148 @@
+package com.inbiaf.android.chillbot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 planes straight into the RGB input of the TensorFlow model, normalized
+ * floats or raw uint8 for quantized models, taking the center square of the frame and scaling
+ * it to the model size on the way.
+ * <p>
+ * There is no JPEG round trip and no intermediate Bitmap: every output pixel reads one luma and
+ * one chroma sample, looked up through coordinate tables computed once for the frame size.
+ */
+public class YuvToTensorConverter {
+
+    // YUV -> RGB fixed-point constants (BT.601, 10 bit fraction).
+    private static final int MAX_CHANNEL_VALUE = 262143;
+
+    private final int dstWidth;
+    private final int dstHeight;
+    private final boolean quantized;
+    private final float mean;
+    private final float invStd;
+
+    /* Source column / row sampled for each output column / row. */
+    private final int[] srcX;
+    private final int[] srcY;
+
+    public YuvToTensorConverter(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                float mean, float std) {
+        this(srcWidth, srcHeight, dstWidth, dstHeight, false, mean, std);
+    }
+
+    /**
+     * @param quantized write uint8 channels instead of normalized floats
+     */
+    public YuvToTensorConverter(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                boolean quantized, float mean, float std) {
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.quantized = quantized;
+        this.mean = mean;
+        this.invStd = 1.0f / std;
+
+        // We only want the center square out of the original rectangle.
+        final int minDim = Math.min(srcWidth, srcHeight);
+        final int offsetX = (srcWidth - minDim) / 2;
+        final int offsetY = (srcHeight - minDim) / 2;
+
+        srcX = new int[dstWidth];
+        for (int x = 0; x < dstWidth; ++x) {
+            srcX[x] = offsetX + Math.min(minDim - 1, (int) ((x + 0.5f) * minDim / dstWidth));
+        }
+        srcY = new int[dstHeight];
+        for (int y = 0; y < dstHeight; ++y) {
+            srcY[y] = offsetY + Math.min(minDim - 1, (int) ((y + 0.5f) * minDim / dstHeight));
+        }
+    }
+
+    /**
+     * Number of bytes {@link #convert} writes into the output buffer.
+     */
+    public int getOutputSize() {
+        return (quantized ? 1 : 4) * dstWidth * dstHeight * 3;
+    }
+
+    /**
+     * Writes the converted frame into {@code out}, starting at its current position.
+     *
+     * @param yPlane        luma plane, pixel stride 1
+     * @param yRowStride    row stride of the luma plane
+     * @param uPlane        Cb plane
+     * @param vPlane        Cr plane
+     * @param uvRowStride   row stride shared by both chroma planes
+     * @param uvPixelStride pixel stride shared by both chroma planes
+     * @param out           model input buffer
+     */
+    public void convert(ByteBuffer yPlane, int yRowStride,
+                        ByteBuffer uPlane, ByteBuffer vPlane,
+                        int uvRowStride, int uvPixelStride,
+                        ByteBuffer out) {
+        for (int j = 0; j < dstHeight; ++j) {
+            final int sy = srcY[j];
+            final int yRow = yRowStride * sy;
+            final int uvRow = uvRowStride * (sy >> 1);
+            for (int i = 0; i < dstWidth; ++i) {
+                final int sx = srcX[i];
+                final int uvOffset = uvRow + (sx >> 1) * uvPixelStride;
+                final int rgb = yuvToRgb(yPlane.get(yRow + sx) & 0xFF,
+                        uPlane.get(uvOffset) & 0xFF,
+                        vPlane.get(uvOffset) & 0xFF);
+                if (quantized) {
+                    out.put((byte) (rgb >> 16));
+                    out.put((byte) (rgb >> 8));
+                    out.put((byte) rgb);
+                } else {
+                    out.putFloat((((rgb >> 16) & 0xFF) - mean) * invStd);
+                    out.putFloat((((rgb >> 8) & 0xFF) - mean) * invStd);
+                    out.putFloat(((rgb & 0xFF) - mean) * invStd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a whole YUV_420_888 frame into packed ARGB pixels, for paths that need more than
+     * the center square, such as tiled scans.
+     *
+     * @param argb output pixels, row stride equal to {@code width}
+     */
+    public static void toArgb(ByteBuffer yPlane, int yRowStride,
+                              ByteBuffer uPlane, ByteBuffer vPlane,
+                              int uvRowStride, int uvPixelStride,
+                              int width, int height, int[] argb) {
+        int pixel = 0;
+        for (int j = 0; j < height; ++j) {
+            final int yRow = yRowStride * j;
+            final int uvRow = uvRowStride * (j >> 1);
+            for (int i = 0; i < width; ++i) {
+                final int uvOffset = uvRow + (i >> 1) * uvPixelStride;
+                argb[pixel++] = 0xFF000000 | yuvToRgb(yPlane.get(yRow + i) & 0xFF,
+                        uPlane.get(uvOffset) & 0xFF,
+                        vPlane.get(uvOffset) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Converts one YUV sample to a packed 0xRRGGBB value.
+     */
+    static int yuvToRgb(int y, int u, int v) {
+        // Adjust and check YUV values
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+
+        final int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        // Clipping RGB values to be inside boundaries [ 0 , MAX_CHANNEL_VALUE ]
+        r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+        g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+        b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+
+        return ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
@@ -0,0 +1,361 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.inbiaf.android.chillbot.Inventory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Thread-safe front-end over a bounded pool of {@link ImageClassifier}s, each with its own
+ * interpreter and input/output buffers, so frames and crops can be classified in parallel
+ * across cores. All classifiers share one model mapping through the {@link ModelRegistry}.
+ * <p>
+ * A batch always runs as one interpreter call on a single context, so each context keeps
+ * seeing the same batch size and never resizes its tensors; parallelism comes from callers
+ * classifying different frames at the same time.
+ * <p>
+ * Contexts are borrowed and returned through a lock-free stack, with a semaphore bounding how
+ * many are out at once; there is no global lock around inference. Since the last returned
+ * context is borrowed first, a single caller keeps getting the same one.
+ * <p>
+ * The model can be replaced while the pool is in use with {@link #swapModel}: a full set of
+ * contexts is built and tested for the new model, new borrowers get those, and the old set is
+ * closed once every inference still running on it has finished.
+ */
+public class ClassifierPool implements Closeable {
+
+    private static final String TAG = "ClassifierPool";
+
+    /**
+     * The contexts for one model. A swap retires the whole set at once.
+     */
+    private static final class Generation {
+        final ModelSource source;
+        final ImageClassifier[] contexts;
+        final ConcurrentLinkedDeque<ImageClassifier> idle = new ConcurrentLinkedDeque<>();
+        final Semaphore available;
+        volatile boolean retired;
+
+        Generation(ModelSource source, int size, int numThreads) throws IOException {
+            this.source = source;
+            contexts = new ImageClassifier[size];
+            try {
+                for (int i = 0; i < size; ++i) {
+                    contexts[i] = new ImageClassifier(source, numThreads);
+                    idle.add(contexts[i]);
+                }
+            } catch (IOException e) {
+                closeContexts();
+                throw e;
+            }
+            available = new Semaphore(size);
+        }
+
+        boolean owns(ImageClassifier context) {
+            for (ImageClassifier owned : contexts) {
+                if (owned == context) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Wait for borrowed contexts to come back and close them all. Borrowers still waiting
+         * for this generation are then let through to find it retired.
+         */
+        void drainAndClose() {
+            retired = true;
+            available.acquireUninterruptibly(contexts.length);
+            closeContexts();
+            available.release(contexts.length);
+        }
+
+        void closeContexts() {
+            for (ImageClassifier context : contexts) {
+                if (context != null) {
+                    context.close();
+                }
+            }
+        }
+    }
+
+    private final int size;
+    /**
+     * Picks the interpreter thread count of every model, or null for the default.
+     */
+    private final InterpreterTuner tuner;
+    private volatile Generation current;
+    /**
+     * The generation being drained by a swap, so its contexts can still be returned.
+     */
+    private volatile Generation retiring;
+    private final Object swapLock = new Object();
+    /**
+     * Batch size of the last warm-up, repeated on the contexts of a swapped-in model.
+     */
+    private volatile int warmUpItems = 1;
+    private volatile boolean closed;
+
+    /**
+     * Pool with one context per available core.
+     */
+    public ClassifierPool(Activity activity) throws IOException {
+        this(activity, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ClassifierPool(Activity activity, int size) throws IOException {
+        this(ModelSource.fromAssets(activity, ImageClassifier.MODEL_PATH,
+                ImageClassifier.LABEL_PATH), size);
+    }
+
+    public ClassifierPool(ModelSource source, int size) throws IOException {
+        this(source, size, null);
+    }
+
+    /**
+     * @param tuner picks how many threads each interpreter uses, or null for the default
+     */
+    public ClassifierPool(ModelSource source, int size, InterpreterTuner tuner)
+            throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.size = size;
+        this.tuner = tuner;
+        current = new Generation(source, size, threadsFor(source));
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Where the model in use comes from.
+     */
+    public ModelSource getModelSource() {
+        return current.source;
+    }
+
+    /**
+     * Whether the model takes raw uint8 pixels, see {@link ImageClassifier#isQuantized()}.
+     */
+    public boolean isQuantized() {
+        return current.contexts[0].isQuantized();
+    }
+
+    /**
+     * Size in bytes of one model input.
+     */
+    public int getInputSize() {
+        return current.contexts[0].getInputSize();
+    }
+
+    /**
+     * Borrow a context, waiting for one to be returned if all are in use. The caller has it to
+     * itself until {@link #release(ImageClassifier)}.
+     */
+    public ImageClassifier acquire() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Classifier pool is closed");
+            }
+            final Generation generation = current;
+            generation.available.acquire();
+            if (!generation.retired) {
+                return generation.idle.pollFirst();
+            }
+            // Swapped out while waiting; try again on the new model.
+            generation.available.release();
+        }
+    }
+
+    /**
+     * Return a context obtained from {@link #acquire()}.
+     */
+    public void release(ImageClassifier context) {
+        Generation generation = current;
+        if (!generation.owns(context)) {
+            generation = retiring;
+        }
+        generation.idle.offerFirst(context);
+        generation.available.release();
+    }
+
+    /**
+     * Replace the model with the one from {@code source}, without stopping classification.
+     * <p>
+     * Contexts for the new model are created and each runs a self-test inference; if any of
+     * that fails the current model stays in use. Otherwise new borrowers get the new contexts
+     * right away, and this call returns once every inference on the old model has finished
+     * and its contexts are closed.
+     *
+     * @throws IOException if the new model cannot be loaded, takes a different input than the
+     *                     current one, or fails its self-test
+     */
+    public void swapModel(ModelSource source) throws IOException {
+        synchronized (swapLock) {
+            if (closed) {
+                throw new IllegalStateException("Classifier pool is closed");
+            }
+            final Generation previous = current;
+            final Generation next = new Generation(source, size, threadsFor(source));
+            try {
+                final ImageClassifier probe = next.contexts[0];
+                if (probe.isQuantized() != isQuantized()
+                        || probe.getInputSize() != getInputSize()) {
+                    throw new IOException("Model " + source + " takes a different input");
+                }
+                for (ImageClassifier context : next.contexts) {
+                    if (!context.selfTest(warmUpItems)) {
+                        throw new IOException("Model " + source + " failed its self-test");
+                    }
+                }
+            } catch (IOException e) {
+                next.closeContexts();
+                throw e;
+            } catch (RuntimeException e) {
+                next.closeContexts();
+                throw new IOException("Model " + source + " failed its self-test", e);
+            }
+
+            final long start = System.nanoTime();
+            retiring = previous;
+            current = next;
+            previous.drainAndClose();
+            retiring = null;
+            Log.i(TAG, "Swapped " + previous.source + " for " + source + ", drained in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * Interpreter threads for a model, tuned for all contexts of the pool running at once.
+     */
+    private int threadsFor(ModelSource source) throws IOException {
+        return tuner == null ? 0 : tuner.threadsFor(source, size);
+    }
+
+    /**
+     * Classifies one model input on whichever context is free.
+     */
+    public Inventory classifyFrame(ByteBuffer input) throws InterruptedException {
+        final ImageClassifier context = acquire();
+        try {
+            return context.classifyFrame(input);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Classifies several frames or crops in one batch on a single context.
+     */
+    public List<Inventory> classifyBatch(List<Bitmap> frames) throws InterruptedException {
+        final ImageClassifier context = acquire();
+        try {
+            return context.classifyBatch(frames);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Classifies {@code count} model inputs written back to back in one interpreter call on a
+     * single context, see {@link ImageClassifier#classifyBatch(ByteBuffer, int)}.
+     *
+     * @return one result per item, in order
+     */
+    public List<Inventory> classifyBatch(ByteBuffer batch, int count)
+            throws InterruptedException {
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        final ImageClassifier context = acquire();
+        try {
+            return context.classifyBatch(batch, count);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Warm up every context in parallel with a batch of {@code itemCount}, the size
+     * {@link #classifyBatch(ByteBuffer, int)} will be called with, see
+     * {@link ImageClassifier#warmUp(int)}. Meant for startup, before the pool is in use.
+     */
+    public void warmUp(int itemCount) throws InterruptedException {
+        final int batchSize = Math.max(itemCount, 1);
+        warmUpItems = batchSize;
+        final ImageClassifier[] borrowed = new ImageClassifier[size];
+        for (int i = 0; i < size; ++i) {
+            borrowed[i] = acquire();
+        }
+        final ExecutorService executor =
+                size > 1 ? Executors.newFixedThreadPool(size - 1) : null;
+        final List<Future<?>> futures = new ArrayList<>(size - 1);
+        try {
+            for (int i = 1; i < size; ++i) {
+                final ImageClassifier context = borrowed[i];
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        context.warmUp(batchSize);
+                    }
+                }));
+            }
+            borrowed[0].warmUp(batchSize);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Warm-up failed", e.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (ImageClassifier context : borrowed) {
+                release(context);
+            }
+        }
+    }
+
+    /**
+     * Classifies every tile of a tiled scan in one batch on a single context and merges the
+     * results, see {@link ImageClassifier#classifyTiles(ByteBuffer, int)}.
+     */
+    public Inventory classifyTiles(ByteBuffer tiles, int tileCount) throws InterruptedException {
+        final ImageClassifier context = acquire();
+        try {
+            return context.classifyTiles(tiles, tileCount);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Wait for borrowed contexts to come back, then close every interpreter.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (swapLock) {
+            if (!current.retired) {
+                current.drainAndClose();
+            }
+        }
+    }
+}
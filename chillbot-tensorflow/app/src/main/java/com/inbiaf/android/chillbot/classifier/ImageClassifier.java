@@ -1,29 +1,22 @@
 package com.inbiaf.android.chillbot.classifier;
 
 import android.app.Activity;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.os.SystemClock;
 import android.util.Log;
 
-import com.inbiaf.android.chillbot.Drinks;
+import com.inbiaf.android.chillbot.Inventory;
+import com.inbiaf.android.chillbot.RgbToTensorKernel;
 
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
 
 /**
  * Classifies images with Tensorflow Lite.
@@ -38,12 +31,12 @@ public class ImageClassifier {
     /**
      * Name of the model file stored in Assets.
      */
-    private static final String MODEL_PATH = "chill-bot.lite";
+    public static final String MODEL_PATH = "chill-bot.lite";
 
     /**
      * Name of the label file stored in Assets.
      */
-    private static final String LABEL_PATH = "labels.txt";
+    public static final String LABEL_PATH = "labels.txt";
 
     /**
      * Number of results to show in the UI.
@@ -57,16 +50,36 @@ public class ImageClassifier {
 
     private static final int DIM_PIXEL_SIZE = 3;
 
-    static final int DIM_IMG_SIZE_X = 224;
-    static final int DIM_IMG_SIZE_Y = 224;
+    public static final int DIM_IMG_SIZE_X = 224;
+    public static final int DIM_IMG_SIZE_Y = 224;
 
-    private static final int IMAGE_MEAN = 128;
-    private static final float IMAGE_STD = 128.0f;
+    public static final int IMAGE_MEAN = 128;
+    public static final float IMAGE_STD = 128.0f;
 
 
     /* Preallocated buffers for storing image data in. */
     private int[] intValues = new int[DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y];
 
+    /**
+     * Normalizes model-sized Bitmap pixels into {@link #imgData} in one pass.
+     */
+    private final RgbToTensorKernel inputKernel;
+
+    /**
+     * The model takes raw uint8 pixels instead of normalized floats.
+     */
+    private final boolean quantizedInput;
+    /**
+     * The model outputs uint8 scores, 255 being a probability of 1.
+     */
+    private final boolean quantizedOutput;
+
+    /**
+     * Shared model mapping and labels from the {@link ModelRegistry}.
+     */
+    private final ModelRegistry.Handle<MappedByteBuffer> modelHandle;
+    private final ModelRegistry.Handle<List<String>> labelsHandle;
+
     /**
      * An instance of the driver class to run model inference with Tensorflow Lite.
      */
@@ -87,37 +100,103 @@ public class ImageClassifier {
      */
     private float[][] labelProbArray = null;
     /**
-     * multi-stage low pass filter
-     **/
-    private float[][] filterLabelProbArray = null;
-    private static final int FILTER_STAGES = 3;
-    private static final float FILTER_FACTOR = 0.4f;
+     * Raw output of a quantized model, used instead of {@link #labelProbArray}.
+     */
+    private byte[][] labelByteArray = null;
 
-    private PriorityQueue<Map.Entry<String, Float>> sortedLabels =
-            new PriorityQueue<>(
-                    RESULTS_TO_SHOW,
-                    new Comparator<Map.Entry<String, Float>>() {
-                        @Override
-                        public int compare(Map.Entry<String, Float> o1, Map.Entry<String, Float> o2) {
-                            return (o1.getValue()).compareTo(o2.getValue());
-                        }
-                    });
+    /**
+     * Batch size the interpreter input is currently sized for.
+     */
+    private int inputBatchSize = DIM_BATCH_SIZE;
+    /**
+     * Outputs of the last batch, reallocated only when the batch size changes.
+     */
+    private float[][] batchProbArray = null;
+    private byte[][] batchByteArray = null;
+    /**
+     * Batched input filled from Bitmaps, grown to the largest batch seen.
+     */
+    private ByteBuffer batchData = null;
+    /**
+     * Kernel for batch Bitmaps that are not model-sized, rebuilt only when their size changes.
+     */
+    private RgbToTensorKernel batchKernel = null;
+
+    /**
+     * Top-K selection over one output row, reused for every frame.
+     */
+    private final TopKSelector topK = new TopKSelector(RESULTS_TO_SHOW);
 
     /**
-     * Initializes an {@code ImageClassifier}.
+     * Which labels are present, resolved to output indices when the labels are loaded.
+     */
+    private final PresenceRule presenceRule;
+
+    /**
+     * Initializes an {@code ImageClassifier}. Instances are not thread-safe; use a
+     * {@link ClassifierPool} to classify from several threads.
      */
     public ImageClassifier(Activity activity) throws IOException {
+        this(ModelSource.fromAssets(activity, MODEL_PATH, LABEL_PATH));
+    }
+
+    /**
+     * Initializes an {@code ImageClassifier} for a model that may not be the one in the assets,
+     * with the interpreter's default number of threads.
+     *
+     * @throws IOException if the model or labels cannot be read, or do not match
+     */
+    public ImageClassifier(ModelSource source) throws IOException {
+        this(source, 0);
+    }
+
+    /**
+     * @param numThreads threads the interpreter uses, see {@link InterpreterTuner}; 0 keeps the
+     *                   interpreter's default
+     */
+    public ImageClassifier(ModelSource source, int numThreads) throws IOException {
         Log.d("DevLogger","ImageClassifier constructor");
-        tflite = new Interpreter(loadModelFile(activity));
+        modelHandle = source.acquireModel();
+        try {
+            labelsHandle = source.acquireLabels();
+        } catch (IOException e) {
+            modelHandle.close();
+            throw e;
+        }
+        try {
+            final Interpreter.Options options = new Interpreter.Options();
+            if (numThreads > 0) {
+                options.setNumThreads(numThreads);
+            }
+            tflite = new Interpreter(modelHandle.get(), options);
+        } catch (RuntimeException e) {
+            labelsHandle.close();
+            modelHandle.close();
+            throw new IOException("Cannot load model " + source, e);
+        }
         Log.d("DevLogger","ImageClassifier constructor 1");
 
-        labelList = loadLabelList(activity);
+        labelList = labelsHandle.get();
+        final int[] outputShape = tflite.getOutputTensor(0).shape();
+        if (outputShape[outputShape.length - 1] != labelList.size()) {
+            close();
+            throw new IOException("Model " + source + " has "
+                    + outputShape[outputShape.length - 1] + " outputs but "
+                    + labelList.size() + " labels");
+        }
+        presenceRule = new PresenceRule(labelList);
 
         Log.d("DevLogger","ImageClassifier constructor 2");
 
-        imgData =
-                ByteBuffer.allocateDirect(
-                        4 * DIM_BATCH_SIZE * DIM_IMG_SIZE_X * DIM_IMG_SIZE_Y * DIM_PIXEL_SIZE);
+        quantizedInput = tflite.getInputTensor(0).dataType() == DataType.UINT8;
+        quantizedOutput = tflite.getOutputTensor(0).dataType() == DataType.UINT8;
+        Log.d(TAG, "Model input is " + (quantizedInput ? "uint8" : "float")
+                + ", output is " + (quantizedOutput ? "uint8" : "float"));
+
+        inputKernel = new RgbToTensorKernel(
+                DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y, DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y,
+                quantizedInput, IMAGE_MEAN, IMAGE_STD);
+        imgData = ByteBuffer.allocateDirect(DIM_BATCH_SIZE * inputKernel.getOutputSize());
 
         Log.d("DevLogger","ImageClassifier constructor 3");
 
@@ -125,96 +204,240 @@ public class ImageClassifier {
 
         Log.d("DevLogger","ImageClassifier constructor 4");
 
-        labelProbArray = new float[1][labelList.size()];
+        if (quantizedOutput) {
+            labelByteArray = new byte[1][labelList.size()];
+        } else {
+            labelProbArray = new float[1][labelList.size()];
+        }
 
         Log.d("DevLogger","ImageClassifier constructor 5");
 
-        filterLabelProbArray = new float[FILTER_STAGES][labelList.size()];
         Log.d("DevLogger","ImageClassifier constructor 6");
 
         Log.d(TAG, "Created a Tensorflow Lite Image Classifier.");
     }
 
+    /**
+     * Whether the model takes raw uint8 pixels, in which case inputs prepared outside of this
+     * class must be written by quantized kernels.
+     */
+    public boolean isQuantized() {
+        return quantizedInput;
+    }
+
+    /**
+     * Size in bytes of one model input.
+     */
+    public int getInputSize() {
+        return inputKernel.getOutputSize();
+    }
+
     /**
      * Classifies a frame from the preview stream.
      */
-    public Drinks classifyFrame(Bitmap bitmap) {
+    public Inventory classifyFrame(Bitmap bitmap) {
         if (tflite == null) {
             Log.e(TAG, "Image classifier has not been initialized; Skipped.");
             return null;
         }
 
         convertBitmapToByteBuffer(bitmap);
-        // Here's where the magic happens!!!
-        long startTime = SystemClock.uptimeMillis();
-        tflite.run(imgData, labelProbArray);
-        long endTime = SystemClock.uptimeMillis();
-        Log.d(TAG, "Timecost to run model inference: " + Long.toString(endTime - startTime));
+        return classifyInput(imgData);
+    }
 
-        // smooth the results
-        applyFilter();
+    /**
+     * Classifies a frame that has already been written into a model input buffer, such as the
+     * one produced from a YUV image by the preprocessor.
+     */
+    public Inventory classifyFrame(ByteBuffer input) {
+        if (tflite == null) {
+            Log.e(TAG, "Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        input.rewind();
+        return classifyInput(input);
+    }
 
-        // print the results
-        return printTopKLabels();
+    /**
+     * Classifies several frames or crops in a single interpreter call, e.g. a burst of
+     * pictures or the shelves of a multi-shelf scan. Bitmaps of any size are accepted; their
+     * center square is scaled to the model input size.
+     *
+     * @return one result per Bitmap, in order, or null if the classifier is closed
+     */
+    public List<Inventory> classifyBatch(List<Bitmap> frames) {
+        if (tflite == null) {
+            Log.e(TAG, "Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        final int count = frames.size();
+        final int itemSize = inputKernel.getOutputSize();
+        if (batchData == null || batchData.capacity() < count * itemSize) {
+            batchData = ByteBuffer.allocateDirect(count * itemSize);
+            batchData.order(ByteOrder.nativeOrder());
+        }
+        batchData.clear();
+        for (Bitmap frame : frames) {
+            writeBitmap(frame, batchData);
+        }
+        return classifyBatch(batchData, count);
     }
 
-    void applyFilter() {
-        int num_labels = labelList.size();
+    /**
+     * Classifies {@code count} model inputs written back to back into {@code batch}, such as
+     * the tiles of a TiledPreprocessor, in a single interpreter call.
+     *
+     * @return one result per item, in order, or null if the classifier is closed
+     */
+    public List<Inventory> classifyBatch(ByteBuffer batch, int count) {
+        if (tflite == null) {
+            Log.e(TAG, "Image classifier has not been initialized; Skipped.");
+            return null;
+        }
+        runBatch(batch, count);
+
+        final List<Inventory> results = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            results.add(quantizedOutput
+                    ? toInventory(batchByteArray[i]) : toInventory(batchProbArray[i]));
+        }
+        return results;
+    }
 
-        // Low pass filter `labelProbArray` into the first stage of the filter.
-        for (int j = 0; j < num_labels; ++j) {
-            filterLabelProbArray[0][j] += FILTER_FACTOR * (labelProbArray[0][j] -
-                    filterLabelProbArray[0][j]);
+    /**
+     * Runs the interpreter once on a synthetic mid-gray batch, so the first real frame does not
+     * pay for tensor allocation and first-run setup.
+     *
+     * @param batchSize batch size the first real inferences will use
+     */
+    public void warmUp(int batchSize) {
+        if (tflite == null) {
+            return;
+        }
+        final int size = batchSize * inputKernel.getOutputSize();
+        final ByteBuffer synthetic = ByteBuffer.allocateDirect(size);
+        synthetic.order(ByteOrder.nativeOrder());
+        // Gray is 128 raw, or 0 once normalized; a direct buffer starts zeroed.
+        if (quantizedInput) {
+            for (int i = 0; i < size; ++i) {
+                synthetic.put(i, (byte) IMAGE_MEAN);
+            }
         }
-        // Low pass filter each stage into the next.
-        for (int i = 1; i < FILTER_STAGES; ++i) {
-            for (int j = 0; j < num_labels; ++j) {
-                filterLabelProbArray[i][j] += FILTER_FACTOR * (
-                        filterLabelProbArray[i - 1][j] -
-                                filterLabelProbArray[i][j]);
+        long startTime = SystemClock.uptimeMillis();
+        runBatch(synthetic, batchSize);
+        Log.d(TAG, "Warm-up inference on a batch of " + batchSize + " took "
+                + (SystemClock.uptimeMillis() - startTime) + " ms");
+    }
 
+    /**
+     * Runs a synthetic batch like {@link #warmUp(int)} and checks that every output is a
+     * probability, before a new model is put to use.
+     *
+     * @return false if the model produced scores that are not probabilities
+     */
+    public boolean selfTest(int batchSize) {
+        if (tflite == null) {
+            return false;
+        }
+        warmUp(batchSize);
+        if (quantizedOutput) {
+            // Any uint8 score is a valid probability.
+            return true;
+        }
+        for (int i = 0; i < batchSize; ++i) {
+            for (float score : batchProbArray[i]) {
+                // Also rejects NaN.
+                if (!(score >= 0 && score <= 1.001f)) {
+                    return false;
+                }
             }
         }
+        return true;
+    }
 
-        // Copy the last stage filter output back to `labelProbArray`.
-        for (int j = 0; j < num_labels; ++j) {
-            labelProbArray[0][j] = filterLabelProbArray[FILTER_STAGES - 1][j];
+    /**
+     * Runs a batch into {@link #batchProbArray} or {@link #batchByteArray}.
+     */
+    private void runBatch(ByteBuffer batch, int count) {
+        final Object output;
+        if (quantizedOutput) {
+            if (batchByteArray == null || batchByteArray.length != count) {
+                batchByteArray = new byte[count][labelList.size()];
+            }
+            output = batchByteArray;
+        } else {
+            if (batchProbArray == null || batchProbArray.length != count) {
+                batchProbArray = new float[count][labelList.size()];
+            }
+            output = batchProbArray;
         }
+        resizeInputBatch(count);
+        batch.rewind();
+
+        long startTime = SystemClock.uptimeMillis();
+        tflite.run(batch, output);
+        long endTime = SystemClock.uptimeMillis();
+        Log.d(TAG, "Timecost to run model inference on a batch of " + count + ": "
+                + Long.toString(endTime - startTime));
     }
 
     /**
-     * Closes tflite to release resources.
+     * Classifies every tile of a tiled scan in one batch and merges the per-tile results into
+     * a single inventory: a label is present if any tile sees it, and "other" only if no tile
+     * found anything else.
+     *
+     * @param tiles     {@code tileCount} model inputs back to back, see TiledPreprocessor
+     * @param tileCount number of tiles in the batch
      */
-    public void close() {
-        tflite.close();
-        tflite = null;
+    public Inventory classifyTiles(ByteBuffer tiles, int tileCount) {
+        return mergeTiles(classifyBatch(tiles, tileCount));
+    }
+
+    /**
+     * Merges per-tile results into one inventory, see {@link PresenceRule#merge}.
+     */
+    private Inventory mergeTiles(List<Inventory> results) {
+        if (results == null || results.isEmpty()) {
+            return null;
+        }
+        return presenceRule.merge(results);
     }
 
     /**
-     * Reads label list from Assets.
+     * Resize the interpreter input to a batch of {@code batchSize} images, only when it changes.
      */
-    private List<String> loadLabelList(Activity activity) throws IOException {
-        List<String> labelList = new ArrayList<String>();
-        BufferedReader reader =
-                new BufferedReader(new InputStreamReader(activity.getAssets().open(LABEL_PATH)));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            labelList.add(line);
+    private void resizeInputBatch(int batchSize) {
+        if (batchSize != inputBatchSize) {
+            tflite.resizeInput(0,
+                    new int[]{batchSize, DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y, DIM_PIXEL_SIZE});
+            inputBatchSize = batchSize;
+        }
+    }
+
+    private Inventory classifyInput(ByteBuffer input) {
+        resizeInputBatch(DIM_BATCH_SIZE);
+        // Here's where the magic happens!!!
+        long startTime = SystemClock.uptimeMillis();
+        if (quantizedOutput) {
+            tflite.run(input, labelByteArray);
+        } else {
+            tflite.run(input, labelProbArray);
         }
-        reader.close();
-        return labelList;
+        long endTime = SystemClock.uptimeMillis();
+        Log.d(TAG, "Timecost to run model inference: " + Long.toString(endTime - startTime));
+
+        // print the results
+        return quantizedOutput ? toInventory(labelByteArray[0]) : toInventory(labelProbArray[0]);
     }
 
     /**
-     * Memory-map the model file in Assets.
+     * Closes tflite to release resources.
      */
-    private MappedByteBuffer loadModelFile(Activity activity) throws IOException {
-        AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(MODEL_PATH);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    public void close() {
+        tflite.close();
+        tflite = null;
+        labelsHandle.close();
+        modelHandle.close();
     }
 
     /**
@@ -225,80 +448,72 @@ public class ImageClassifier {
             return;
         }
         imgData.rewind();
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
         // Convert the image to floating point.
-        int pixel = 0;
         long startTime = SystemClock.uptimeMillis();
-        for (int i = 0; i < DIM_IMG_SIZE_X; ++i) {
-            for (int j = 0; j < DIM_IMG_SIZE_Y; ++j) {
-                final int val = intValues[pixel++];
-                imgData.putFloat((((val >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((val >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                imgData.putFloat((((val) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-            }
-        }
+        writeBitmap(bitmap, imgData);
         long endTime = SystemClock.uptimeMillis();
         Log.d(TAG, "Timecost to put values into ByteBuffer: " + Long.toString(endTime - startTime));
     }
 
     /**
-     * Prints top-K labels, to be shown in UI as the results.
+     * Writes one Bitmap as a model input at the buffer's current position.
      */
-    private Drinks printTopKLabels() {
-        for (int i = 0; i < labelList.size(); ++i) {
-            sortedLabels.add(
-                    new AbstractMap.SimpleEntry<>(labelList.get(i), labelProbArray[0][i]));
-            if (sortedLabels.size() > RESULTS_TO_SHOW) {
-                sortedLabels.poll();
-            }
+    private void writeBitmap(Bitmap bitmap, ByteBuffer out) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (intValues.length < width * height) {
+            intValues = new int[width * height];
         }
+        bitmap.getPixels(intValues, 0, width, 0, 0, width, height);
+        kernelFor(width, height).process(intValues, out);
+    }
 
-        final int size = sortedLabels.size();
-        ArrayList<Recognition> results = new ArrayList();
-
-        for (int i = 0; i < size; ++i) {
-            Map.Entry<String, Float> label = sortedLabels.poll();
-            Log.d("DevLogger","recognition = "+label.getKey()+ ", confidence = "+label.getValue());
-            results.add(new Recognition("id", label.getKey(), label.getValue()));
-//            textToShow = String.format("\n%s: %4.2f", label.getKey(), label.getValue()) + textToShow;
+    private RgbToTensorKernel kernelFor(int width, int height) {
+        if (width == DIM_IMG_SIZE_X && height == DIM_IMG_SIZE_Y) {
+            return inputKernel;
         }
-
-        boolean hasCoke = false;
-        boolean hasPerrier = false;
-        boolean hasOther = false;
-
-        Recognition cocacolaRecognition = null;
-        Recognition perrierRecognition = null;
-        Recognition otherRecognition = null;
-
-        for (Recognition result : results) {
-            switch (result.getTitle()) {
-                case "cocacola":
-                    cocacolaRecognition = result;
-                    break;
-                case "perrier":
-                    perrierRecognition = result;
-                    break;
-
-                case "other":
-                    otherRecognition = result;
-                    break;
-            }
+        if (batchKernel == null || batchKernel.getSourceWidth() != width
+                || batchKernel.getSourceHeight() != height) {
+            batchKernel = new RgbToTensorKernel(width, height, DIM_IMG_SIZE_X, DIM_IMG_SIZE_Y,
+                    quantizedInput, IMAGE_MEAN, IMAGE_STD);
         }
+        return batchKernel;
+    }
 
-        if (otherRecognition != null && otherRecognition.getConfidence() > 0.1) {
-            return new Drinks(false, false, true);
-        }
+    /**
+     * Maps one output row to the inventory it shows.
+     */
+    private Inventory toInventory(float[] labelProbs) {
+        topK.select(labelProbs);
+        logTopK();
+        final Inventory inventory = new Inventory(labelList);
+        inventory.setConfidences(labelProbs);
+        presenceRule.apply(topK, inventory);
+        return inventory;
+    }
 
-        if (cocacolaRecognition != null && perrierRecognition != null
-            && perrierRecognition.getConfidence() / cocacolaRecognition.getConfidence() > 0.1) {
-            return new Drinks(false, true, false);
+    /**
+     * Maps one raw quantized output row to the inventory it shows. The top-K selection runs on
+     * the unsigned bytes.
+     */
+    private Inventory toInventory(byte[] labelScores) {
+        topK.select(labelScores);
+        logTopK();
+        final Inventory inventory = new Inventory(labelList);
+        for (int i = 0; i < labelScores.length; ++i) {
+            inventory.setConfidence(i, (labelScores[i] & 0xFF) / 255.0f);
         }
+        presenceRule.apply(topK, inventory);
+        return inventory;
+    }
 
-        if (cocacolaRecognition != null && cocacolaRecognition.getConfidence() > 0.05) {
-            return new Drinks(true, false, false);
+    private void logTopK() {
+        if (!Log.isLoggable(TAG, Log.VERBOSE)) {
+            return;
+        }
+        for (int rank = 0; rank < topK.getCount(); ++rank) {
+            Log.v(TAG, "recognition = " + labelList.get(topK.getIndex(rank))
+                    + ", confidence = " + topK.getScore(rank));
         }
-
-        return new Drinks(false, false, true);
     }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Picks the number of threads each interpreter uses, by benchmarking the model on this board
+ * the first time it is seen.
+ * <p>
+ * Every candidate thread count runs synthetic inferences on as many interpreters at once as a
+ * {@link ClassifierPool} runs in parallel, so the result accounts for contexts competing for
+ * the cores. The fastest count is stored in the app preferences under the checksum of the model
+ * and the parallelism, and reused from then on; a retrained model is benchmarked again.
+ */
+public class InterpreterTuner {
+
+    private static final String TAG = "InterpreterTuner";
+    private static final String PREFERENCES = "interpreter_tuning";
+
+    /**
+     * Timed inferences per interpreter and candidate, after one untimed run.
+     */
+    private static final int BENCHMARK_RUNS = 3;
+
+    private final SharedPreferences preferences;
+    private final int maxThreads;
+
+    public InterpreterTuner(Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxThreads largest thread count tried
+     */
+    public InterpreterTuner(Context context, int maxThreads) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * Thread count for interpreters of the model from {@code source}, benchmarked now if it
+     * was never measured for this model and parallelism.
+     *
+     * @param parallelism how many interpreters of the model run at the same time
+     */
+    public synchronized int threadsFor(ModelSource source, int parallelism) throws IOException {
+        try (ModelRegistry.Handle<MappedByteBuffer> model = source.acquireModel()) {
+            final String key = "threads_" + Long.toHexString(checksum(model.get()))
+                    + "_" + parallelism;
+            final int stored = preferences.getInt(key, 0);
+            if (stored > 0) {
+                return stored;
+            }
+            final int threads = benchmark(model.get(), parallelism);
+            preferences.edit().putInt(key, threads).apply();
+            return threads;
+        }
+    }
+
+    /**
+     * CRC32 of the whole model.
+     */
+    static long checksum(ByteBuffer model) {
+        final ByteBuffer view = model.duplicate();
+        view.rewind();
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[64 * 1024];
+        while (view.hasRemaining()) {
+            final int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    private int benchmark(MappedByteBuffer model, int parallelism) {
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            int bestThreads = 1;
+            long bestNanos = Long.MAX_VALUE;
+            for (int threads = 1; threads <= maxThreads; ++threads) {
+                final long nanos;
+                try {
+                    nanos = time(model, threads, parallelism, executor);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Cannot benchmark " + threads + " threads", e);
+                    continue;
+                }
+                Log.d(TAG, threads + " threads x " + parallelism + " interpreters: "
+                        + nanos / 1000 + " us per round");
+                if (nanos < bestNanos) {
+                    bestNanos = nanos;
+                    bestThreads = threads;
+                }
+            }
+            Log.i(TAG, "Using " + bestThreads + " threads per interpreter");
+            return bestThreads;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wall time of one round of inferences on {@code parallelism} interpreters at once.
+     */
+    private static long time(MappedByteBuffer model, int threads, int parallelism,
+                             ExecutorService executor) {
+        final List<Interpreter> interpreters = new ArrayList<>(parallelism);
+        try {
+            final List<Callable<Void>> runs = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; ++i) {
+                final Interpreter interpreter =
+                        new Interpreter(model, new Interpreter.Options().setNumThreads(threads));
+                interpreters.add(interpreter);
+                final ByteBuffer input = syntheticInput(interpreter.getInputTensor(0));
+                final Object output = outputFor(interpreter.getOutputTensor(0));
+                // First run allocates tensors; leave it out of the timing.
+                interpreter.run(input, output);
+                runs.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int run = 0; run < BENCHMARK_RUNS; ++run) {
+                            input.rewind();
+                            interpreter.run(input, output);
+                        }
+                        return null;
+                    }
+                });
+            }
+            final long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(runs)) {
+                future.get();
+            }
+            return (System.nanoTime() - start) / BENCHMARK_RUNS;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Benchmark interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Benchmark inference failed", e.getCause());
+        } finally {
+            for (Interpreter interpreter : interpreters) {
+                interpreter.close();
+            }
+        }
+    }
+
+    private static ByteBuffer syntheticInput(Tensor tensor) {
+        final ByteBuffer input = ByteBuffer.allocateDirect(tensor.numBytes());
+        input.order(ByteOrder.nativeOrder());
+        // Mid-gray for a uint8 input; zero is mid-gray once normalized.
+        if (tensor.dataType() == DataType.UINT8) {
+            for (int i = 0; i < input.capacity(); ++i) {
+                input.put(i, (byte) ImageClassifier.IMAGE_MEAN);
+            }
+        }
+        return input;
+    }
+
+    private static Object outputFor(Tensor tensor) {
+        final int[] shape = tensor.shape();
+        final int labels = shape[shape.length - 1];
+        return tensor.dataType() == DataType.UINT8
+                ? new byte[1][labels] : new float[1][labels];
+    }
+}
@@ -0,0 +1,192 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of models and label lists keyed by asset path or file, so each model is
+ * memory-mapped and each label file read exactly once however many classifiers use them.
+ * <p>
+ * Every acquire returns a {@link Handle} holding one reference; the entry is dropped when the
+ * last handle is closed, and the next acquire loads it again. Models and labels are cached
+ * separately, so both can be loaded at the same time. Files are keyed by path, modification
+ * time and size, so a file replaced with a new version is loaded again while the old version
+ * stays mapped for the classifiers still using it.
+ */
+public class ModelRegistry {
+
+    private static ModelRegistry instance;
+
+    /**
+     * A shared, reference-counted model or label list. Close it when done; closing twice is
+     * harmless.
+     */
+    public static final class Handle<T> implements Closeable {
+        private final SharedCache<T> cache;
+        private final String key;
+        private final T value;
+        private boolean closed;
+
+        private Handle(SharedCache<T> cache, String key, T value) {
+            this.cache = cache;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public T get() {
+            return value;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            cache.release(key);
+        }
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private static final class Entry<T> {
+        final T value;
+        int references;
+
+        Entry(T value) {
+            this.value = value;
+        }
+    }
+
+    private static final class SharedCache<T> {
+        private final Map<String, Entry<T>> entries = new HashMap<>();
+
+        synchronized Handle<T> acquire(String key, Loader<T> loader) throws IOException {
+            Entry<T> entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry<>(loader.load());
+                entries.put(key, entry);
+            }
+            entry.references++;
+            return new Handle<>(this, key, entry.value);
+        }
+
+        synchronized void release(String key) {
+            final Entry<T> entry = entries.get(key);
+            if (entry != null && --entry.references == 0) {
+                entries.remove(key);
+            }
+        }
+
+        synchronized int getReferenceCount(String key) {
+            final Entry<T> entry = entries.get(key);
+            return entry == null ? 0 : entry.references;
+        }
+    }
+
+    private final SharedCache<MappedByteBuffer> models = new SharedCache<>();
+    private final SharedCache<List<String>> labels = new SharedCache<>();
+
+    private ModelRegistry() {
+    }
+
+    public static synchronized ModelRegistry getInstance() {
+        if (instance == null) {
+            instance = new ModelRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Memory-maps a model from the assets, or shares the mapping already made.
+     */
+    public Handle<MappedByteBuffer> acquireModel(final Context context, final String assetPath)
+            throws IOException {
+        return models.acquire(assetPath, new Loader<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer load() throws IOException {
+                return TensorFlowHelper.loadModelFile(context, assetPath);
+            }
+        });
+    }
+
+    /**
+     * Reads a label list from the assets, or shares the one already read. The list is
+     * read-only.
+     */
+    public Handle<List<String>> acquireLabels(final Context context, final String assetPath)
+            throws IOException {
+        return labels.acquire(assetPath, new Loader<List<String>>() {
+            @Override
+            public List<String> load() throws IOException {
+                try {
+                    return Collections.unmodifiableList(
+                            TensorFlowHelper.readLabels(context, assetPath));
+                } catch (IllegalStateException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Memory-maps a model from device storage, or shares the mapping already made. Replace the
+     * file by renaming a new one over it rather than writing it in place, as the old mapping
+     * may still be in use.
+     */
+    public Handle<MappedByteBuffer> acquireModel(final File file) throws IOException {
+        return models.acquire(fileKey(file), new Loader<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer load() throws IOException {
+                return TensorFlowHelper.loadModelFile(file);
+            }
+        });
+    }
+
+    /**
+     * Reads a label list from device storage, or shares the one already read. The list is
+     * read-only.
+     */
+    public Handle<List<String>> acquireLabels(final File file) throws IOException {
+        return labels.acquire(fileKey(file), new Loader<List<String>>() {
+            @Override
+            public List<String> load() throws IOException {
+                return Collections.unmodifiableList(TensorFlowHelper.readLabels(file));
+            }
+        });
+    }
+
+    private static String fileKey(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No such file: " + file);
+        }
+        return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Live handles on a model, mainly for diagnostics.
+     */
+    public int getModelReferenceCount(String assetPath) {
+        return models.getReferenceCount(assetPath);
+    }
+
+    public int getLabelsReferenceCount(String assetPath) {
+        return labels.getReferenceCount(assetPath);
+    }
+}
@@ -0,0 +1,58 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+/**
+ * Where a model and its labels come from: the app assets, or files on device storage for a
+ * model updated after the app was built. Both are shared through the {@link ModelRegistry}.
+ */
+public abstract class ModelSource {
+
+    public abstract ModelRegistry.Handle<MappedByteBuffer> acquireModel() throws IOException;
+
+    public abstract ModelRegistry.Handle<List<String>> acquireLabels() throws IOException;
+
+    public static ModelSource fromAssets(final Context context, final String modelPath,
+                                         final String labelsPath) {
+        return new ModelSource() {
+            @Override
+            public ModelRegistry.Handle<MappedByteBuffer> acquireModel() throws IOException {
+                return ModelRegistry.getInstance().acquireModel(context, modelPath);
+            }
+
+            @Override
+            public ModelRegistry.Handle<List<String>> acquireLabels() throws IOException {
+                return ModelRegistry.getInstance().acquireLabels(context, labelsPath);
+            }
+
+            @Override
+            public String toString() {
+                return "assets/" + modelPath;
+            }
+        };
+    }
+
+    public static ModelSource fromFiles(final File modelFile, final File labelsFile) {
+        return new ModelSource() {
+            @Override
+            public ModelRegistry.Handle<MappedByteBuffer> acquireModel() throws IOException {
+                return ModelRegistry.getInstance().acquireModel(modelFile);
+            }
+
+            @Override
+            public ModelRegistry.Handle<List<String>> acquireLabels() throws IOException {
+                return ModelRegistry.getInstance().acquireLabels(labelsFile);
+            }
+
+            @Override
+            public String toString() {
+                return modelFile.getPath();
+            }
+        };
+    }
+}
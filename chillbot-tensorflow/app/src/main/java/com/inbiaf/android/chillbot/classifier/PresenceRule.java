@@ -0,0 +1,84 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import com.inbiaf.android.chillbot.Inventory;
+
+import java.util.List;
+
+/**
+ * Decides which labels are present from the model output, with the same rule as the app had
+ * for its three drinks labels: "other" wins above its own threshold, then perrier when it
+ * scores at least a tenth of cocacola, then cocacola above its threshold, and "other" when none
+ * of these holds. Exactly one label is present per frame, and labels the rule does not know are
+ * never present. The labels are looked up once, when they are loaded.
+ */
+final class PresenceRule {
+
+    static final String COCACOLA = "cocacola";
+    static final String PERRIER = "perrier";
+    static final String OTHER = "other";
+
+    /* Output indices of each label, or -1 if the model does not have it. */
+    private final int cocacola;
+    private final int perrier;
+    private final int other;
+
+    PresenceRule(List<String> labels) {
+        cocacola = labels.indexOf(COCACOLA);
+        perrier = labels.indexOf(PERRIER);
+        other = labels.indexOf(OTHER);
+    }
+
+    /**
+     * Marks the label the last top-K selection shows. Labels outside the top K count as not
+     * seen.
+     */
+    void apply(TopKSelector top, Inventory inventory) {
+        inventory.clear();
+        final float otherScore = scoreOf(top, other);
+        final float cocacolaScore = scoreOf(top, cocacola);
+        final float perrierScore = scoreOf(top, perrier);
+
+        if (otherScore > 0.1) {
+            setPresent(inventory, other);
+        } else if (cocacolaScore >= 0 && perrierScore >= 0
+                && perrierScore / cocacolaScore > 0.1) {
+            setPresent(inventory, perrier);
+        } else if (cocacolaScore > 0.05) {
+            setPresent(inventory, cocacola);
+        } else {
+            setPresent(inventory, other);
+        }
+    }
+
+    private static float scoreOf(TopKSelector top, int labelIndex) {
+        return labelIndex < 0 ? -1 : top.scoreOf(labelIndex);
+    }
+
+    private static void setPresent(Inventory inventory, int labelIndex) {
+        if (labelIndex >= 0) {
+            inventory.set(labelIndex, true);
+        }
+    }
+
+    /**
+     * Merges per-tile results into one inventory: a label is present if any tile sees it, with
+     * the confidence of its best tile, and "other" only if no tile found anything else.
+     */
+    Inventory merge(List<Inventory> tiles) {
+        final Inventory merged = new Inventory(tiles.get(0).getLabels());
+        for (Inventory tile : tiles) {
+            for (int label = tile.nextPresent(0); label >= 0; label = tile.nextPresent(label + 1)) {
+                merged.set(label, true);
+            }
+            for (int label = 0; label < merged.size(); ++label) {
+                merged.setConfidence(label,
+                        Math.max(merged.getConfidence(label), tile.getConfidence(label)));
+            }
+        }
+        if (other >= 0) {
+            merged.set(other, false);
+            merged.set(other, merged.countPresent() == 0);
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,191 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import java.util.Arrays;
+
+/**
+ * Multi-stage low pass filter over a row of scores that follows real time, and tells when its
+ * output has settled.
+ * <p>
+ * Each stage moves towards its input by {@code factor} per nominal frame interval; when frames
+ * come faster or slower, the step is scaled so the filter smooths over the same amount of time.
+ * The output is converged once it has been stable for the given number of updates in a row,
+ * where stable means either that the top entry stayed the same and its filtered value moved
+ * less than the threshold, or that every filtered value moved less than the threshold, see
+ * {@link Convergence}.
+ * <p>
+ * Not thread-safe.
+ */
+public class TemporalFilter {
+
+    /**
+     * What has to hold still for the output to count as stable.
+     */
+    public enum Convergence {
+        /**
+         * The top entry and its value; for scores where one entry is the answer.
+         */
+        TOP_ENTRY,
+        /**
+         * Every value; for independent entries such as per-label presence votes.
+         */
+        EVERY_ENTRY
+    }
+
+    private final float[][] stages;
+    private final float factor;
+    private final long nominalIntervalNanos;
+    private final float convergenceThreshold;
+    private final int convergenceUpdates;
+    private final Convergence convergence;
+    /* Output of the previous update, for EVERY_ENTRY. */
+    private final float[] previous;
+    /**
+     * Start every stage at the first input instead of at zero, so a steady input converges
+     * right away.
+     */
+    private final boolean primeWithFirstUpdate;
+
+    private long lastTimestampNanos;
+    private int updates;
+    private int topIndex = -1;
+    private float topValue;
+    private int stableUpdates;
+
+    /**
+     * @param size                 number of entries in a row
+     * @param stageCount           number of cascaded low pass stages
+     * @param factor               step of each stage towards its input per nominal interval
+     * @param nominalIntervalNanos frame interval {@code factor} was tuned for
+     * @param convergenceThreshold largest change of a value that counts as stable
+     * @param convergenceUpdates   stable updates in a row needed to converge
+     * @param primeWithFirstUpdate start from the first input rather than from zero
+     */
+    public TemporalFilter(int size, int stageCount, float factor, long nominalIntervalNanos,
+                          float convergenceThreshold, int convergenceUpdates,
+                          boolean primeWithFirstUpdate) {
+        this(size, stageCount, factor, nominalIntervalNanos, convergenceThreshold,
+                convergenceUpdates, primeWithFirstUpdate, Convergence.TOP_ENTRY);
+    }
+
+    /**
+     * @param convergence what has to hold still for the output to count as stable
+     */
+    public TemporalFilter(int size, int stageCount, float factor, long nominalIntervalNanos,
+                          float convergenceThreshold, int convergenceUpdates,
+                          boolean primeWithFirstUpdate, Convergence convergence) {
+        if (stageCount < 1 || factor <= 0 || factor > 1 || nominalIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Invalid filter parameters");
+        }
+        stages = new float[stageCount][size];
+        this.factor = factor;
+        this.nominalIntervalNanos = nominalIntervalNanos;
+        this.convergenceThreshold = convergenceThreshold;
+        this.convergenceUpdates = convergenceUpdates;
+        this.primeWithFirstUpdate = primeWithFirstUpdate;
+        this.convergence = convergence;
+        this.previous = convergence == Convergence.EVERY_ENTRY ? new float[size] : null;
+    }
+
+    /**
+     * Filters {@code values} in place.
+     *
+     * @param timestampNanos when the values were observed, on any monotonic clock
+     */
+    public void update(float[] values, long timestampNanos) {
+        final int size = values.length;
+        if (updates == 0 && primeWithFirstUpdate) {
+            for (float[] stage : stages) {
+                System.arraycopy(values, 0, stage, 0, size);
+            }
+        } else {
+            final float step = stepFor(timestampNanos);
+            // Low pass the input into the first stage, then each stage into the next.
+            for (int j = 0; j < size; ++j) {
+                stages[0][j] += step * (values[j] - stages[0][j]);
+            }
+            for (int i = 1; i < stages.length; ++i) {
+                for (int j = 0; j < size; ++j) {
+                    stages[i][j] += step * (stages[i - 1][j] - stages[i][j]);
+                }
+            }
+            // Copy the last stage output back.
+            System.arraycopy(stages[stages.length - 1], 0, values, 0, size);
+        }
+        lastTimestampNanos = timestampNanos;
+        updates++;
+        trackConvergence(values);
+    }
+
+    /**
+     * Step for the time since the last update. The first update, or one without a usable
+     * interval, takes the nominal step.
+     */
+    private float stepFor(long timestampNanos) {
+        final long elapsed = timestampNanos - lastTimestampNanos;
+        if (updates == 0 || elapsed <= 0) {
+            return factor;
+        }
+        return (float) (1 - Math.pow(1 - factor, (double) elapsed / nominalIntervalNanos));
+    }
+
+    private void trackConvergence(float[] output) {
+        if (convergence == Convergence.EVERY_ENTRY) {
+            boolean stable = updates > 1;
+            for (int j = 0; j < output.length; ++j) {
+                stable &= Math.abs(output[j] - previous[j]) < convergenceThreshold;
+            }
+            System.arraycopy(output, 0, previous, 0, output.length);
+            stableUpdates = stable ? stableUpdates + 1 : 0;
+        }
+        int index = 0;
+        for (int j = 1; j < output.length; ++j) {
+            if (output[j] > output[index]) {
+                index = j;
+            }
+        }
+        final float value = output.length == 0 ? 0 : output[index];
+        if (convergence == Convergence.TOP_ENTRY) {
+            if (index == topIndex && Math.abs(value - topValue) < convergenceThreshold) {
+                stableUpdates++;
+            } else {
+                stableUpdates = 0;
+            }
+        }
+        topIndex = index;
+        topValue = value;
+    }
+
+    /**
+     * Whether the output has settled, see the class description.
+     */
+    public boolean isConverged() {
+        return stableUpdates >= convergenceUpdates;
+    }
+
+    /**
+     * Number of updates since creation or the last {@link #reset()}.
+     */
+    public int getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * Index of the highest filtered value after the last update, or -1 before the first.
+     */
+    public int getTopIndex() {
+        return topIndex;
+    }
+
+    /**
+     * Forget everything seen so far, e.g. when a new scan starts.
+     */
+    public void reset() {
+        for (float[] stage : stages) {
+            Arrays.fill(stage, 0);
+        }
+        updates = 0;
+        topIndex = -1;
+        topValue = 0;
+        stableUpdates = 0;
+    }
+}
@@ -4,41 +4,48 @@ package com.inbiaf.android.chillbot.classifier;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
+import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 
 /**
  * Helper functions for the TensorFlow image classifier.
  */
 public class TensorFlowHelper {
 
-    private static final int RESULTS_TO_SHOW = 3;
-
     /**
      * Memory-map the model file in Assets.
      */
     public static MappedByteBuffer loadModelFile(Context context, String modelFile)
             throws IOException {
-        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelFile);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        // The mapping stays valid once the descriptor is closed.
+        try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(modelFile);
+             FileInputStream inputStream =
+                     new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = fileDescriptor.getStartOffset();
+            long declaredLength = fileDescriptor.getDeclaredLength();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        }
+    }
+
+    /**
+     * Memory-map a model file from device storage.
+     */
+    public static MappedByteBuffer loadModelFile(File modelFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(modelFile, "r")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
     }
 
     public static List<String> readLabels(Context context, String labelsFile) {
@@ -52,65 +59,18 @@ public class TensorFlowHelper {
             }
             return result;
         } catch (IOException ex) {
-            throw new IllegalStateException("Cannot read labels from " + labelsFile);
-        }
-    }
-
-    /**
-     * Find the best classifications.
-     */
-    public static Collection<Recognition> getBestResults(byte[][] labelProbArray,
-                                                         List<String> labelList) {
-        PriorityQueue<Recognition> sortedLabels = new PriorityQueue<>(RESULTS_TO_SHOW,
-                new Comparator<Recognition>() {
-                    @Override
-                    public int compare(Recognition lhs, Recognition rhs) {
-                        return Float.compare(lhs.getConfidence(), rhs.getConfidence());
-                    }
-                });
-
-
-        for (int i = 0; i < labelList.size(); ++i) {
-            Recognition recognition = new Recognition( String.valueOf(i),
-                    labelList.get(i), (labelProbArray[0][i] & 0xff) / 255.0f);
-
-            Log.d("DevLogger","recognition = "+recognition.getTitle()+", confidence = "+recognition.getConfidence());
-            sortedLabels.add(recognition);
-
-            if (recognition.getConfidence() > 0) {
-                Log.d("ImageRecognition", recognition.toString());
-            }
-            if (sortedLabels.size() > RESULTS_TO_SHOW) {
-                sortedLabels.poll();
-            }
-        }
-
-        List<Recognition> results = new ArrayList<>(RESULTS_TO_SHOW);
-        for (Recognition r: sortedLabels) {
-            results.add(0, r);
+            throw new IllegalStateException("Cannot read labels from " + labelsFile, ex);
         }
-
-        return results;
     }
 
-    /** Writes Image data into a {@code ByteBuffer}. */
-    public static void convertBitmapToByteBuffer(Bitmap bitmap, int[] intValues, ByteBuffer imgData) {
-        if (imgData == null) {
-            return;
-        }
-        imgData.rewind();
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0,
-                bitmap.getWidth(), bitmap.getHeight());
-        // Encode the image pixels into a byte buffer representation matching the expected
-        // input of the Tensorflow model
-        int pixel = 0;
-        for (int i = 0; i < bitmap.getWidth(); ++i) {
-            for (int j = 0; j < bitmap.getHeight(); ++j) {
-                final int val = intValues[pixel++];
-                imgData.put((byte) ((val >> 16) & 0xFF));
-                imgData.put((byte) ((val >> 8) & 0xFF));
-                imgData.put((byte) (val & 0xFF));
+    public static List<String> readLabels(File labelsFile) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(labelsFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                result.add(line);
             }
         }
+        return result;
     }
 }
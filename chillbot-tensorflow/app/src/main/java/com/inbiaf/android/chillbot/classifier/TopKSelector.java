@@ -0,0 +1,114 @@
+package com.inbiaf.android.chillbot.classifier;
+
+/**
+ * Picks the K highest scores of a model output row without allocating, by insertion into
+ * preallocated rank arrays. Works on float probabilities and on the raw unsigned bytes of a
+ * quantized output, where only the K winners are converted to probabilities.
+ * <p>
+ * Results stay valid until the next {@code select}. Not thread-safe; each classifier keeps
+ * its own.
+ */
+public class TopKSelector {
+
+    private final int[] indices;
+    private final float[] scores;
+    /**
+     * Raw scores of the byte path, compared as ints and converted once selection is done.
+     */
+    private final int[] rawScores;
+    private int count;
+
+    public TopKSelector(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        indices = new int[k];
+        scores = new float[k];
+        rawScores = new int[k];
+    }
+
+    /**
+     * Selects the top scores of a float row.
+     *
+     * @return number of results, at most K
+     */
+    public int select(float[] row) {
+        final int k = indices.length;
+        int found = 0;
+        for (int i = 0; i < row.length; ++i) {
+            final float score = row[i];
+            if (found == k && score <= scores[k - 1]) {
+                continue;
+            }
+            int slot = found < k ? found++ : k - 1;
+            while (slot > 0 && scores[slot - 1] < score) {
+                scores[slot] = scores[slot - 1];
+                indices[slot] = indices[slot - 1];
+                slot--;
+            }
+            scores[slot] = score;
+            indices[slot] = i;
+        }
+        count = found;
+        return found;
+    }
+
+    /**
+     * Selects the top scores of a quantized row, 255 being a probability of 1.
+     *
+     * @return number of results, at most K
+     */
+    public int select(byte[] row) {
+        final int k = indices.length;
+        int found = 0;
+        for (int i = 0; i < row.length; ++i) {
+            final int score = row[i] & 0xFF;
+            if (found == k && score <= rawScores[k - 1]) {
+                continue;
+            }
+            int slot = found < k ? found++ : k - 1;
+            while (slot > 0 && rawScores[slot - 1] < score) {
+                rawScores[slot] = rawScores[slot - 1];
+                indices[slot] = indices[slot - 1];
+                slot--;
+            }
+            rawScores[slot] = score;
+            indices[slot] = i;
+        }
+        for (int rank = 0; rank < found; ++rank) {
+            scores[rank] = rawScores[rank] / 255.0f;
+        }
+        count = found;
+        return found;
+    }
+
+    /**
+     * Number of results of the last selection.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Label index of the result at {@code rank}, 0 being the highest score.
+     */
+    public int getIndex(int rank) {
+        return indices[rank];
+    }
+
+    public float getScore(int rank) {
+        return scores[rank];
+    }
+
+    /**
+     * Score of {@code labelIndex} if it made the last selection, or -1.
+     */
+    public float scoreOf(int labelIndex) {
+        for (int rank = 0; rank < count; ++rank) {
+            if (indices[rank] == labelIndex) {
+                return scores[rank];
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,129 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FramePipelineTest {
+
+    /* Frame number n, captured at n microseconds. */
+    private static class NumberedFrame implements Frame {
+        final int number;
+
+        NumberedFrame(int number) {
+            this.number = number;
+        }
+
+        @Override
+        public int getWidth() {
+            return 1;
+        }
+
+        @Override
+        public int getHeight() {
+            return 1;
+        }
+
+        @Override
+        public long getTimestampNanos() {
+            return number * 1000L;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    @Test
+    public void skipsFramesAStageThrowsOnAndKeepsRunning() throws Exception {
+        final List<Integer> recycled = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        final BlockingQueue<Integer> published = new LinkedBlockingQueue<>();
+        final BlockingQueue<Long> timestamps = new LinkedBlockingQueue<>();
+        final FramePipeline<NumberedFrame, Integer> pipeline = new FramePipeline<>(
+                new FramePipeline.Preprocessor<NumberedFrame>() {
+                    @Override
+                    public boolean preprocess(NumberedFrame frame, ByteBuffer input) {
+                        if (frame.number == 1) {
+                            throw new IllegalStateException("corrupt frame");
+                        }
+                        input.putInt(frame.number);
+                        return true;
+                    }
+                },
+                new FramePipeline.Inference<Integer>() {
+                    @Override
+                    public Integer infer(ByteBuffer input) {
+                        final int frame = input.getInt(0);
+                        if (frame == 2) {
+                            throw new IllegalStateException("model failed");
+                        }
+                        return frame;
+                    }
+                },
+                new FramePipeline.Publisher<Integer>() {
+                    @Override
+                    public void publish(Integer result, long timestampNanos) {
+                        if (result == 3) {
+                            throw new IllegalStateException("database failed");
+                        }
+                        timestamps.add(timestampNanos);
+                        published.add(result);
+                    }
+                },
+                new LatestFrameSlot.Recycler<NumberedFrame>() {
+                    @Override
+                    public void recycle(NumberedFrame frame) {
+                        synchronized (recycled) {
+                            recycled.add(frame.number);
+                        }
+                    }
+                },
+                4, 1);
+        pipeline.setErrorListener(new FramePipeline.ErrorListener() {
+            @Override
+            public void onError(String stage, RuntimeException error) {
+                synchronized (errors) {
+                    errors.add(stage);
+                }
+            }
+        });
+        pipeline.start();
+        try {
+            // One frame at a time, so none is dropped for a newer one.
+            for (int frame = 1; frame <= 3; ++frame) {
+                pipeline.submit(new NumberedFrame(frame));
+                while (pipeline.getPreprocessQueueDepth() > 0) {
+                    Thread.sleep(1);
+                }
+            }
+            // Every input buffer is back in the pool, or this frame would never get through.
+            for (int frame = 4; frame <= 10; ++frame) {
+                pipeline.submit(new NumberedFrame(frame));
+                assertEquals(Integer.valueOf(frame), published.poll(5, TimeUnit.SECONDS));
+                // Each result keeps the capture time of its own frame.
+                assertEquals(Long.valueOf(frame * 1000L), timestamps.poll());
+            }
+        } finally {
+            pipeline.stop();
+        }
+        synchronized (errors) {
+            assertEquals(3, errors.size());
+            assertTrue(errors.contains("preprocess"));
+            assertTrue(errors.contains("inference"));
+            assertTrue(errors.contains("publish"));
+        }
+        synchronized (recycled) {
+            assertEquals(1, recycled.size());
+            assertEquals(Integer.valueOf(1), recycled.get(0));
+        }
+        assertEquals(3, pipeline.getErrorCount());
+    }
+}
@@ -0,0 +1,40 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InventoryFilterTest {
+
+    private static final List<String> LABELS = Arrays.asList("cocacola", "perrier");
+    private static final long FRAME = 66_000_000L;
+
+    private static Inventory frame(boolean cocacola) {
+        final Inventory inventory = new Inventory(LABELS);
+        inventory.set(0, cocacola);
+        inventory.setConfidence(0, cocacola ? 0.9f : 0.1f);
+        return inventory;
+    }
+
+    @Test
+    public void oneOddFrameDoesNotFlipTheInventory() {
+        final InventoryFilter filter = new InventoryFilter(3, 0.4f, FRAME, 0.05f, 2);
+        long time = 0;
+        assertTrue(filter.update(frame(true), time).has(0));
+        assertTrue(filter.update(frame(true), time += FRAME).has(0));
+
+        final Inventory odd = filter.update(frame(false), time += FRAME);
+        assertTrue(odd.has(0));
+        // Confidences are those of the latest frame.
+        assertEquals(0.1f, odd.getConfidence(0), 0f);
+
+        boolean gone = false;
+        for (int i = 0; i < 10 && !gone; ++i) {
+            gone = !filter.update(frame(false), time += FRAME).has(0);
+        }
+        assertTrue(gone);
+    }
+}
@@ -0,0 +1,196 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InventoryOutboxTest {
+
+    private static final int CAPACITY = 1024;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outbox", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static Map<String, Object> changes(Object... keysAndValues) {
+        final Map<String, Object> changes = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            changes.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return changes;
+    }
+
+    @Test
+    public void coalescesToLatestValuePerKey() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.append(changes("coke", true, "perrier", false), 1);
+            outbox.append(changes("coke", false, "other", null), 2);
+            InventoryOutbox.Batch batch = outbox.pending();
+            assertEquals(4, batch.getRecordCount());
+            assertEquals(changes("perrier", false, "coke", false, "other", null),
+                    batch.getValues());
+        }
+    }
+
+    @Test
+    public void acknowledgeDropsOnlyConfirmedRecords() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            long first = outbox.append(changes("coke", true), 1);
+            long second = outbox.append(changes("perrier", true), 2);
+            outbox.acknowledge(first);
+            assertEquals(changes("perrier", true), outbox.pending().getValues());
+
+            // Stale acknowledgement.
+            outbox.acknowledge(first);
+            assertEquals(1, outbox.getRecordCount());
+
+            outbox.acknowledge(second);
+            assertTrue(outbox.pending().isEmpty());
+        }
+    }
+
+    @Test
+    public void laterWriteDoesNotConfirmAFailedOne() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.append(changes("perrier", true), 1);
+            long second = outbox.append(changes("coke", false), 2);
+            // The first write fails, the second one goes through.
+            outbox.reject();
+            outbox.acknowledge(second);
+            assertTrue(outbox.needsReplay());
+            assertEquals(changes("perrier", true, "coke", false), outbox.pending().getValues());
+
+            InventoryOutbox.Batch replay = outbox.pending();
+            outbox.append(changes("other", true), 3);
+            outbox.acknowledge(replay);
+            assertFalse(outbox.needsReplay());
+            assertEquals(changes("other", true), outbox.pending().getValues());
+        }
+    }
+
+    @Test
+    public void recoveredRecordsWaitForAReplay() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.append(changes("perrier", true), 1);
+        }
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            assertTrue(outbox.needsReplay());
+            outbox.acknowledge(outbox.append(changes("coke", true), 2));
+            assertEquals(changes("perrier", true, "coke", true), outbox.pending().getValues());
+            outbox.acknowledge(outbox.pending());
+            assertTrue(outbox.pending().isEmpty());
+        }
+    }
+
+    @Test
+    public void survivesReopening() throws Exception {
+        long mark;
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.acknowledge(outbox.append(changes("coke", true), 1));
+            mark = outbox.append(changes("perrier", true, "count", 3L, "name", "fridge"), 2);
+        }
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            InventoryOutbox.Batch batch = outbox.pending();
+            assertEquals(changes("perrier", true, "count", 3L, "name", "fridge"),
+                    batch.getValues());
+            assertEquals(mark, batch.getMark());
+        }
+    }
+
+    private static long indexOf(byte[] bytes, String text) throws Exception {
+        final byte[] needle = text.getBytes("UTF-8");
+        outer:
+        for (int i = 0; i + needle.length <= bytes.length; ++i) {
+            for (int j = 0; j < needle.length; ++j) {
+                if (bytes[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void ignoresCorruptTail() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.append(changes("coke", true), 1);
+            outbox.append(changes("perrier", true), 2);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            final byte[] bytes = new byte[(int) raw.length()];
+            raw.readFully(bytes);
+            // Flip a byte of the second record's key.
+            raw.seek(indexOf(bytes, "perrier"));
+            raw.write(raw.read() ^ 0xff);
+        }
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            assertEquals(changes("coke", true), outbox.pending().getValues());
+            outbox.append(changes("other", true), 3);
+            assertEquals(changes("coke", true, "other", true), outbox.pending().getValues());
+        }
+    }
+
+    @Test
+    public void tornStateWriteKeepsThePreviousState() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            outbox.append(changes("coke", true), 1);
+            outbox.acknowledge(outbox.pending());
+            outbox.append(changes("perrier", true), 2);
+            // Compacts into the other region until a write does not fit.
+            for (int i = 3; i < 100; ++i) {
+                outbox.append(changes("count", (long) i), i);
+            }
+            outbox.acknowledge(outbox.pending());
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // Tear the newest copy of the state, written by the last acknowledgement.
+            long newest = 0;
+            int newestOffset = -1;
+            for (int slot = 0; slot < 2; ++slot) {
+                final int offset = InventoryOutbox.STATE_OFFSET + slot * InventoryOutbox.STATE_SIZE;
+                raw.seek(offset);
+                final long generation = raw.readLong();
+                if (generation > newest) {
+                    newest = generation;
+                    newestOffset = offset;
+                }
+            }
+            raw.seek(newestOffset + 8);
+            raw.writeLong(-1);
+        }
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            // Back to before the acknowledgement: nothing lost, only sent again.
+            assertEquals(changes("perrier", true, "count", 99L), outbox.pending().getValues());
+        }
+    }
+
+    @Test
+    public void compactsWhenFull() throws Exception {
+        try (InventoryOutbox outbox = new InventoryOutbox(file, CAPACITY)) {
+            long early = outbox.append(changes("coke", true), 0);
+            for (int i = 1; i < 100; ++i) {
+                outbox.append(changes("coke", i % 2 == 0, "perrier", i % 3 == 0), i);
+            }
+            assertTrue(outbox.getSize() <= CAPACITY);
+            // Compaction moved the records past marks handed out before it.
+            outbox.acknowledge(early);
+            assertEquals(changes("coke", false, "perrier", true), outbox.pending().getValues());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InventoryPublisherTest {
+
+    private static final long DEBOUNCE_MS = 50;
+    private static final List<String> LABELS = Arrays.asList("cocacola", "perrier", "other");
+
+    private final List<Map<String, Object>> writes =
+            Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+
+    private InventoryPublisher publisher() {
+        return new InventoryPublisher(new InventoryPublisher.Sink() {
+            @Override
+            public void update(Map<String, Object> changes) {
+                writes.add(changes);
+            }
+        }, DEBOUNCE_MS);
+    }
+
+    private static Inventory inventory(String... present) {
+        final Inventory inventory = new Inventory(LABELS);
+        for (String label : present) {
+            inventory.set(inventory.indexOf(label), true);
+        }
+        return inventory;
+    }
+
+    private static void settle() throws InterruptedException {
+        Thread.sleep(DEBOUNCE_MS * 4);
+    }
+
+    @Test
+    public void writesOnlyChangedLabels() throws Exception {
+        InventoryPublisher publisher = publisher();
+        publisher.submit(inventory("cocacola"));
+        settle();
+        assertEquals(1, writes.size());
+        // Everything at first, under the keys the voice action reads.
+        assertEquals(3, writes.get(0).size());
+        assertEquals(true, writes.get(0).get("coke"));
+
+        publisher.submit(inventory("cocacola"));
+        publisher.submit(inventory("cocacola", "perrier"));
+        settle();
+        assertEquals(2, writes.size());
+        assertEquals(Collections.<String, Object>singletonMap("perrier", true), writes.get(1));
+        assertEquals(1, publisher.getSkipCount());
+        publisher.close();
+    }
+
+    @Test
+    public void flappingBackWithinTheWindowIsNotWritten() throws Exception {
+        InventoryPublisher publisher = publisher();
+        publisher.submit(inventory("other"));
+        settle();
+        publisher.submit(inventory("cocacola"));
+        publisher.submit(inventory("other"));
+        settle();
+        assertEquals(1, writes.size());
+        assertEquals(1, publisher.getWriteCount());
+        publisher.close();
+    }
+}
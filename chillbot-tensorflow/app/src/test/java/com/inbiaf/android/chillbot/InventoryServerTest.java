@@ -0,0 +1,168 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class InventoryServerTest {
+
+    private static final List<String> LABELS = Arrays.asList("cocacola", "perrier", "other");
+
+    private InventoryServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private InventoryServer start(InventoryServer.ScanTrigger trigger) throws IOException {
+        server = new InventoryServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                trigger, 2000);
+        server.start();
+        return server;
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static Inventory inventory(boolean coke, boolean perrier) {
+        final Inventory inventory = new Inventory(LABELS);
+        inventory.set(0, coke);
+        inventory.set(1, perrier);
+        inventory.set(2, !coke && !perrier);
+        inventory.setConfidences(new float[]{1f, 0f, 0.2f});
+        return inventory;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * Reads one response; returns the status line and body separated by a newline.
+     */
+    private static String receive(Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString("UTF-8").endsWith("\r\n\r\n")) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            header.write(b);
+        }
+        final String[] lines = header.toString("UTF-8").split("\r\n");
+        int length = 0;
+        for (String line : lines) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        final byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            final int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new IOException("Connection closed");
+            }
+            read += n;
+        }
+        return lines[0] + "\n" + new String(body, "UTF-8");
+    }
+
+    @Test
+    public void servesTheSnapshotOverAKeptAliveConnection() throws Exception {
+        start(null);
+        try (Socket socket = connect()) {
+            send(socket, "GET /inventory HTTP/1.1\r\nHost: fridge\r\n\r\n");
+            assertTrue(receive(socket).startsWith("HTTP/1.1 503"));
+
+            server.update(inventory(true, false), System.currentTimeMillis() - 1000);
+            send(socket, "GET /inventory HTTP/1.1\r\nHost: fridge\r\n\r\n");
+            final String response = receive(socket);
+            assertTrue(response, response.startsWith("HTTP/1.1 200"));
+            assertTrue(response, response.contains("\"cocacola\":true,\"perrier\":false"));
+            assertTrue(response,
+                    response.contains("\"confidences\":{\"cocacola\":1.0,\"perrier\":0.0,"
+                            + "\"other\":0.2}"));
+            assertTrue(response, response.matches("(?s).*\"ageMs\":\\d{4,}}$"));
+
+            // Pipelined.
+            send(socket, "GET /nothing HTTP/1.1\r\n\r\nGET /inventory HTTP/1.1\r\n\r\n");
+            assertTrue(receive(socket).startsWith("HTTP/1.1 404"));
+            assertTrue(receive(socket).startsWith("HTTP/1.1 200"));
+        }
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void scanRequestWaitsForTheNextInventory() throws Exception {
+        final AtomicInteger scans = new AtomicInteger();
+        start(new InventoryServer.ScanTrigger() {
+            @Override
+            public void requestScan() {
+                scans.incrementAndGet();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        server.update(inventory(false, true), System.currentTimeMillis());
+                    }
+                }).start();
+            }
+        });
+        server.update(inventory(true, false), System.currentTimeMillis());
+        try (Socket socket = connect()) {
+            send(socket, "GET /inventory?scan=1 HTTP/1.1\r\n\r\n");
+            final String response = receive(socket);
+            assertTrue(response, response.contains("\"cocacola\":false,\"perrier\":true"));
+        }
+        assertEquals(1, scans.get());
+    }
+
+    @Test
+    public void rejectsAHugeBodyAndKeepsServing() throws Exception {
+        start(null);
+        try (Socket socket = connect()) {
+            send(socket, "POST /inventory HTTP/1.1\r\nContent-Length: 2147483647\r\n\r\n");
+            assertTrue(receive(socket).startsWith("HTTP/1.1 413"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /inventory HTTP/1.1\r\n\r\n");
+            assertTrue(receive(socket).startsWith("HTTP/1.1 503"));
+        }
+    }
+
+    @Test
+    public void closesWhenAsked() throws Exception {
+        start(null);
+        try (Socket socket = connect()) {
+            send(socket, "GET /inventory HTTP/1.0\r\n\r\n");
+            assertTrue(receive(socket).startsWith("HTTP/1.1 503"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InventoryTest {
+
+    private static List<String> labels(int count) {
+        final List<String> labels = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            labels.add("sku" + i);
+        }
+        return labels;
+    }
+
+    @Test
+    public void walksChangedLabelsAcrossWords() {
+        final List<String> labels = labels(150);
+        final Inventory before = new Inventory(labels);
+        before.set(3, true);
+        before.set(70, true);
+        final Inventory after = Inventory.copyOf(before);
+        assertTrue(after.samePresence(before));
+        after.set(70, false);
+        after.set(64, true);
+        after.set(149, true);
+        after.setConfidence(3, 0.9f);
+
+        final List<Integer> changed = new ArrayList<>();
+        for (int label = after.nextChange(before, 0); label >= 0;
+             label = after.nextChange(before, label + 1)) {
+            changed.add(label);
+        }
+        assertEquals(Arrays.asList(64, 70, 149), changed);
+        assertFalse(after.samePresence(before));
+        assertEquals(3, after.countPresent());
+        assertEquals("[sku3, sku64, sku149]", after.toString());
+    }
+
+    @Test
+    public void roundTripsTheCompactForm() {
+        final List<String> labels = labels(11);
+        final Inventory inventory = new Inventory(labels);
+        inventory.set(0, true);
+        inventory.set(9, true);
+        inventory.setConfidence(9, 0.6f);
+        inventory.setConfidence(10, 2f);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(inventory.serializedSize());
+        assertEquals(2 + 11, buffer.capacity());
+        inventory.writeTo(buffer);
+        buffer.flip();
+        final Inventory read = Inventory.readFrom(buffer, labels);
+        assertTrue(read.samePresence(inventory));
+        assertEquals(0.6f, read.getConfidence(9), 0.5f / 255);
+        assertEquals(1f, read.getConfidence(10), 0f);
+        assertEquals(0f, read.getConfidence(1), 0f);
+    }
+}
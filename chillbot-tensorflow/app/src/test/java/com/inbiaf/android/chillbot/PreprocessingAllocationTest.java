@@ -0,0 +1,106 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails if the per-frame preprocessing kernels allocate anything on the Java heap in steady
+ * state. GC pauses on the board show up directly as frame latency spikes.
+ */
+public class PreprocessingAllocationTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int MODEL_SIZE = 224;
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 100;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void rgbKernelAllocatesNothingPerFrame() {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        final RgbToTensorKernel kernel = new RgbToTensorKernel(WIDTH, HEIGHT,
+                MODEL_SIZE, MODEL_SIZE, false, 128, 128.0f);
+        final ByteBuffer out = allocate(kernel.getOutputSize());
+
+        assertNoAllocation(new Runnable() {
+            @Override
+            public void run() {
+                out.rewind();
+                kernel.process(pixels, out);
+            }
+        });
+    }
+
+    @Test
+    public void yuvConverterAllocatesNothingPerFrame() {
+        final ByteBuffer y = allocate(WIDTH * HEIGHT);
+        final ByteBuffer u = allocate(WIDTH * HEIGHT / 2);
+        final ByteBuffer v = allocate(WIDTH * HEIGHT / 2);
+        final YuvToTensorConverter converter = new YuvToTensorConverter(WIDTH, HEIGHT,
+                MODEL_SIZE, MODEL_SIZE, 128, 128.0f);
+        final ByteBuffer out = allocate(converter.getOutputSize());
+
+        assertNoAllocation(new Runnable() {
+            @Override
+            public void run() {
+                out.rewind();
+                converter.convert(y, WIDTH, u, v, WIDTH, 2, out);
+            }
+        });
+    }
+
+    private void assertNoAllocation(Runnable frame) {
+        for (int i = 0; i < WARMUP_FRAMES; ++i) {
+            frame.run();
+        }
+        final long overhead = measurementOverhead();
+        final long before = allocatedBytes();
+        for (int i = 0; i < FRAMES; ++i) {
+            frame.run();
+        }
+        final long allocated = allocatedBytes() - before - overhead;
+        assertEquals("Bytes allocated over " + FRAMES + " frames", 0, allocated);
+    }
+
+    /**
+     * Bytes the allocation counter itself allocates between two reads.
+     */
+    private long measurementOverhead() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 5; ++i) {
+            final long before = allocatedBytes();
+            overhead = Math.min(overhead, allocatedBytes() - before);
+        }
+        return overhead;
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -0,0 +1,215 @@
+package com.inbiaf.android.chillbot;
+
+import com.inbiaf.android.chillbot.classifier.ImageClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a recording through the {@link FramePipeline} and measures throughput and end-to-end
+ * latency, from the frame being captured to its result reaching the publish stage. Pure Java,
+ * so it runs on a plain Linux box with no camera. It lives with the unit tests so it is not
+ * shipped in the app; run it with the app and unit test classes on the class path:
+ * <pre>
+ * java -cp app:test com.inbiaf.android.chillbot.ReplayBenchmark frames/ 640 480 [fps] [inferMs]
+ * </pre>
+ * Frames are preprocessed with {@link RgbToTensorKernel}. Without an interpreter available on
+ * the host, inference is simulated by spinning for a fixed time per frame; callers on a device
+ * can pass the real classifier instead.
+ */
+public class ReplayBenchmark {
+
+    private static final int QUEUE_CAPACITY = 2;
+
+    /**
+     * Outcome of a run. Latencies are in nanoseconds.
+     */
+    public static class Result {
+        public final long submitted;
+        public final long dropped;
+        public final long published;
+        public final long elapsedNanos;
+        public final long p50LatencyNanos;
+        public final long p90LatencyNanos;
+        public final long p99LatencyNanos;
+
+        Result(long submitted, long dropped, long published, long elapsedNanos,
+               long[] latencies, int latencyCount) {
+            this.submitted = submitted;
+            this.dropped = dropped;
+            this.published = published;
+            this.elapsedNanos = elapsedNanos;
+            Arrays.sort(latencies, 0, latencyCount);
+            this.p50LatencyNanos = percentile(latencies, latencyCount, 50);
+            this.p90LatencyNanos = percentile(latencies, latencyCount, 90);
+            this.p99LatencyNanos = percentile(latencies, latencyCount, 99);
+        }
+
+        private static long percentile(long[] sorted, int count, int percent) {
+            return count == 0 ? 0 : sorted[Math.min(count - 1, count * percent / 100)];
+        }
+
+        public double getFramesPerSecond() {
+            return elapsedNanos == 0 ? 0 : published * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames published in %d ms (%.1f fps), %d of %d dropped, "
+                            + "latency p50 %.2f ms p90 %.2f ms p99 %.2f ms",
+                    published, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getFramesPerSecond(),
+                    dropped, submitted, p50LatencyNanos / 1e6, p90LatencyNanos / 1e6,
+                    p99LatencyNanos / 1e6);
+        }
+    }
+
+    private final FrameSource source;
+    private final RgbToTensorKernel kernel;
+    private final FramePipeline.Inference<?> inference;
+    private final int maxFrames;
+    private final long[] latencies;
+
+    private FramePipeline<Frame, Boolean> pipeline;
+    private int latencyCount;
+    private long published;
+    private boolean endOfStream;
+
+    /**
+     * @param source    frames to replay; it is started, streamed until it ends and stopped
+     * @param inference model stage; its results are ignored, only the time it takes counts
+     * @param maxFrames latency samples to keep
+     */
+    public ReplayBenchmark(FrameSource source, int frameWidth, int frameHeight,
+                           int inputWidth, int inputHeight,
+                           FramePipeline.Inference<?> inference, int maxFrames) {
+        this.source = source;
+        this.kernel = new RgbToTensorKernel(frameWidth, frameHeight, inputWidth, inputHeight,
+                false, ImageClassifier.IMAGE_MEAN, ImageClassifier.IMAGE_STD);
+        this.inference = inference;
+        this.maxFrames = maxFrames;
+        this.latencies = new long[maxFrames];
+    }
+
+    /**
+     * Replay the whole source and wait for the last frame to be published.
+     */
+    public Result run() throws InterruptedException {
+        pipeline = new FramePipeline<>(preprocessor, timedInference, publisher,
+                new LatestFrameSlot.Recycler<Frame>() {
+                    @Override
+                    public void recycle(Frame frame) {
+                        frame.release();
+                    }
+                },
+                kernel.getOutputSize(), QUEUE_CAPACITY);
+        pipeline.start();
+
+        final long start = System.nanoTime();
+        source.start(new FrameSource.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                pipeline.submit(frame);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                synchronized (ReplayBenchmark.this) {
+                    endOfStream = true;
+                    ReplayBenchmark.this.notifyAll();
+                }
+            }
+        });
+        source.startStreaming();
+        synchronized (this) {
+            while (!endOfStream
+                    || published + pipeline.getDroppedFrameCount()
+                    < pipeline.getSubmittedFrameCount()) {
+                wait();
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        source.stop();
+        pipeline.stop();
+
+        synchronized (this) {
+            return new Result(pipeline.getSubmittedFrameCount(), pipeline.getDroppedFrameCount(),
+                    published, elapsed, latencies, latencyCount);
+        }
+    }
+
+    private final FramePipeline.Preprocessor<Frame> preprocessor =
+            new FramePipeline.Preprocessor<Frame>() {
+                @Override
+                public boolean preprocess(Frame frame, ByteBuffer input) {
+                    if (frame instanceof RgbFrame) {
+                        kernel.process(((RgbFrame) frame).getPixels(), input);
+                    }
+                    frame.release();
+                    return true;
+                }
+            };
+
+    /* Publishes something for every frame, whatever the wrapped inference returns. */
+    private final FramePipeline.Inference<Boolean> timedInference =
+            new FramePipeline.Inference<Boolean>() {
+                @Override
+                public Boolean infer(ByteBuffer input) {
+                    inference.infer(input);
+                    return Boolean.TRUE;
+                }
+            };
+
+    private final FramePipeline.Publisher<Boolean> publisher =
+            new FramePipeline.Publisher<Boolean>() {
+                @Override
+                public void publish(Boolean result, long timestampNanos) {
+                    final long latency = System.nanoTime() - timestampNanos;
+                    synchronized (ReplayBenchmark.this) {
+                        if (latencyCount < maxFrames) {
+                            latencies[latencyCount++] = latency;
+                        }
+                        published++;
+                        ReplayBenchmark.this.notifyAll();
+                    }
+                }
+            };
+
+    /**
+     * Inference stand-in that keeps the CPU busy for a fixed time, like a model would.
+     */
+    static FramePipeline.Inference<Void> simulatedInference(final long nanos) {
+        return new FramePipeline.Inference<Void>() {
+            @Override
+            public Void infer(ByteBuffer input) {
+                final long end = System.nanoTime() + nanos;
+                while (System.nanoTime() < end) {
+                    // spin
+                }
+                return null;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("usage: ReplayBenchmark <recording> <width> <height>"
+                    + " [fps, 0 = as fast as possible] [simulated inference ms]");
+            System.exit(2);
+        }
+        final int width = Integer.parseInt(args[1]);
+        final int height = Integer.parseInt(args[2]);
+        final float fps = args.length > 3 ? Float.parseFloat(args[3]) : 0;
+        final long inferenceNanos = TimeUnit.MILLISECONDS.toNanos(
+                args.length > 4 ? Long.parseLong(args[4]) : 0);
+
+        final ReplayFrameSource source =
+                new ReplayFrameSource(new File(args[0]), width, height, fps, false);
+        final ReplayBenchmark benchmark = new ReplayBenchmark(source, width, height,
+                ImageClassifier.DIM_IMG_SIZE_X, ImageClassifier.DIM_IMG_SIZE_Y,
+                simulatedInference(inferenceNanos), 100000);
+        System.out.println(benchmark.run());
+    }
+}
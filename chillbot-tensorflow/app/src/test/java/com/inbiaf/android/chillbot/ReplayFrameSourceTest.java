@@ -0,0 +1,105 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a small raw RGB recording and runs it through the pipeline with simulated inference.
+ */
+public class ReplayFrameSourceTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    private static final int FRAMES = 5;
+
+    private File recording;
+
+    @Before
+    public void writeRecording() throws IOException {
+        recording = File.createTempFile("replay", ".rgb");
+        FileOutputStream out = new FileOutputStream(recording);
+        try {
+            byte[] frame = new byte[WIDTH * HEIGHT * 3];
+            for (int f = 0; f < FRAMES; ++f) {
+                for (int i = 0; i < WIDTH * HEIGHT; ++i) {
+                    frame[i * 3] = (byte) f;
+                    frame[i * 3 + 1] = (byte) i;
+                    frame[i * 3 + 2] = (byte) 0xF0;
+                }
+                out.write(frame);
+            }
+            // Trailing partial frame, which must be ignored.
+            out.write(new byte[7]);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void deleteRecording() {
+        recording.delete();
+    }
+
+    @Test
+    public void deliversEveryFrameInOrderThenEnds() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource(recording, WIDTH, HEIGHT, 0, false);
+        final List<Integer> firstPixels = new ArrayList<>();
+        final boolean[] ended = new boolean[1];
+        source.start(new FrameSource.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                synchronized (firstPixels) {
+                    assertEquals(WIDTH, frame.getWidth());
+                    firstPixels.add(((RgbFrame) frame).getPixels()[1]);
+                }
+                frame.release();
+            }
+
+            @Override
+            public void onEndOfStream() {
+                synchronized (firstPixels) {
+                    ended[0] = true;
+                    firstPixels.notifyAll();
+                }
+            }
+        });
+        source.startStreaming();
+        synchronized (firstPixels) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!ended[0] && System.currentTimeMillis() < deadline) {
+                firstPixels.wait(100);
+            }
+        }
+        source.stop();
+
+        assertTrue(ended[0]);
+        assertFalse(source.isStreaming());
+        assertEquals(FRAMES, firstPixels.size());
+        for (int f = 0; f < FRAMES; ++f) {
+            assertEquals(0xFF000000 | (f << 16) | (1 << 8) | 0xF0, (int) firstPixels.get(f));
+        }
+    }
+
+    @Test
+    public void benchmarkAccountsForEveryFrame() throws Exception {
+        ReplayFrameSource source = new ReplayFrameSource(recording, WIDTH, HEIGHT, 0, false);
+        ReplayBenchmark benchmark = new ReplayBenchmark(source, WIDTH, HEIGHT, 4, 4,
+                ReplayBenchmark.simulatedInference(1000000), FRAMES);
+        ReplayBenchmark.Result result = benchmark.run();
+
+        assertEquals(FRAMES, result.submitted);
+        assertEquals(FRAMES, result.published + result.dropped);
+        assertTrue(result.published > 0);
+        assertTrue(result.p99LatencyNanos >= result.p50LatencyNanos);
+        System.out.println("replay: " + result);
+    }
+}
@@ -0,0 +1,59 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    private static final int SIZE = 32;
+
+    /**
+     * Horizontal gradient, brighter to the right unless mirrored, with optional noise.
+     */
+    private static ByteBuffer gradient(boolean mirrored, int noise) {
+        ByteBuffer input = ByteBuffer.allocate(SIZE * SIZE * 3);
+        for (int y = 0; y < SIZE; ++y) {
+            for (int x = 0; x < SIZE; ++x) {
+                int value = (mirrored ? SIZE - 1 - x : x) * 8 + ((x + y) % 2) * noise;
+                for (int c = 0; c < 3; ++c) {
+                    input.put((byte) Math.min(value, 255));
+                }
+            }
+        }
+        return input;
+    }
+
+    @Test
+    public void similarFramesHashClose() {
+        PerceptualHash hash = new PerceptualHash(SIZE, SIZE, true);
+        long clean = hash.hash(gradient(false, 0), 0);
+        long noisy = hash.hash(gradient(false, 3), 0);
+        long mirrored = hash.hash(gradient(true, 0), 0);
+        assertTrue(PerceptualHash.distance(clean, noisy) <= 4);
+        assertTrue(PerceptualHash.distance(clean, mirrored) > 32);
+    }
+
+    @Test
+    public void hitsNearbyHashesEvictsAndExpires() {
+        ResultCache<String> cache = new ResultCache<>(2, 2, 1000);
+        cache.put(new long[]{0b1111L}, 1, "a", 0);
+        cache.put(new long[]{~0L}, 1, "b", 0);
+
+        assertEquals("a", cache.get(new long[]{0b0111L}, 1, 10));
+        assertNull(cache.get(new long[]{0b1111_0000_0000L}, 1, 10));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // "a" was used last, so "b" is evicted.
+        cache.put(new long[]{0xF0F0L}, 1, "c", 10);
+        assertNull(cache.get(new long[]{~0L}, 1, 20));
+        assertEquals("a", cache.get(new long[]{0b1111L}, 1, 20));
+
+        // Too old to be reused.
+        assertNull(cache.get(new long[]{0b1111L}, 1, 2000));
+        assertEquals(0, cache.size());
+    }
+}
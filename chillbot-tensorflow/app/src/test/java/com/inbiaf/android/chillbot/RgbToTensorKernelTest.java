@@ -0,0 +1,162 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the fused kernel against the three-pass crop/rescale, getPixels and per-channel
+ * normalize path it replaces, and reports its per-frame cost on the host JVM.
+ */
+public class RgbToTensorKernelTest {
+
+    private static final int SRC_WIDTH = 640;
+    private static final int SRC_HEIGHT = 480;
+    private static final int DST_SIZE = 224;
+    private static final float MEAN = 128;
+    private static final float STD = 128.0f;
+
+    /**
+     * One 8 bit step after normalization, plus rounding slack.
+     */
+    private static final float FLOAT_TOLERANCE = 1.5f / STD;
+
+    @Test
+    public void identitySizeMatchesPerChannelNormalize() {
+        int[] pixels = gradient(DST_SIZE, DST_SIZE);
+        RgbToTensorKernel kernel = new RgbToTensorKernel(DST_SIZE, DST_SIZE, DST_SIZE, DST_SIZE,
+                false, MEAN, STD);
+        ByteBuffer out = allocate(kernel.getOutputSize());
+        kernel.process(pixels, out);
+        out.rewind();
+
+        for (int val : pixels) {
+            assertEquals((((val >> 16) & 0xFF) - MEAN) / STD, out.getFloat(), 1e-6f);
+            assertEquals((((val >> 8) & 0xFF) - MEAN) / STD, out.getFloat(), 1e-6f);
+            assertEquals(((val & 0xFF) - MEAN) / STD, out.getFloat(), 1e-6f);
+        }
+    }
+
+    @Test
+    public void cropAndResizeMatchesReferenceWithinTolerance() {
+        int[] pixels = gradient(SRC_WIDTH, SRC_HEIGHT);
+        RgbToTensorKernel kernel = new RgbToTensorKernel(SRC_WIDTH, SRC_HEIGHT,
+                DST_SIZE, DST_SIZE, false, MEAN, STD);
+        ByteBuffer out = allocate(kernel.getOutputSize());
+        kernel.process(pixels, out);
+        assertEquals(kernel.getOutputSize(), out.position());
+        out.rewind();
+
+        int[] reference = referenceCropAndRescale(pixels, SRC_WIDTH, SRC_HEIGHT, DST_SIZE);
+        for (int val : reference) {
+            assertEquals((((val >> 16) & 0xFF) - MEAN) / STD, out.getFloat(), FLOAT_TOLERANCE);
+            assertEquals((((val >> 8) & 0xFF) - MEAN) / STD, out.getFloat(), FLOAT_TOLERANCE);
+            assertEquals(((val & 0xFF) - MEAN) / STD, out.getFloat(), FLOAT_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void quantizedOutputWritesRawChannels() {
+        int[] pixels = gradient(SRC_WIDTH, SRC_HEIGHT);
+        RgbToTensorKernel kernel = new RgbToTensorKernel(SRC_WIDTH, SRC_HEIGHT,
+                DST_SIZE, DST_SIZE, true, MEAN, STD);
+        assertEquals(DST_SIZE * DST_SIZE * 3, kernel.getOutputSize());
+        ByteBuffer out = allocate(kernel.getOutputSize());
+        kernel.process(pixels, out);
+        out.rewind();
+
+        int[] reference = referenceCropAndRescale(pixels, SRC_WIDTH, SRC_HEIGHT, DST_SIZE);
+        for (int val : reference) {
+            assertEquals((val >> 16) & 0xFF, out.get() & 0xFF, 1);
+            assertEquals((val >> 8) & 0xFF, out.get() & 0xFF, 1);
+            assertEquals(val & 0xFF, out.get() & 0xFF, 1);
+        }
+    }
+
+    @Test
+    public void benchmarkFullFrame() {
+        int[] pixels = gradient(SRC_WIDTH, SRC_HEIGHT);
+        RgbToTensorKernel kernel = new RgbToTensorKernel(SRC_WIDTH, SRC_HEIGHT,
+                DST_SIZE, DST_SIZE, false, MEAN, STD);
+        ByteBuffer out = allocate(kernel.getOutputSize());
+        final int warmup = 50;
+        final int frames = 200;
+        for (int i = 0; i < warmup; ++i) {
+            out.rewind();
+            kernel.process(pixels, out);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; ++i) {
+            out.rewind();
+            kernel.process(pixels, out);
+        }
+        long perFrame = (System.nanoTime() - start) / frames;
+        System.out.println("RgbToTensorKernel: " + perFrame / 1000 + " us per frame");
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /**
+     * Smooth test image with every channel varying at a different rate.
+     */
+    private static int[] gradient(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int r = (x * 255) / (width - 1);
+                int g = (y * 255) / (height - 1);
+                int b = ((x + y) * 255) / (width + height - 2);
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Floating point center-square crop and bilinear rescale, the way a filtered Canvas draw of
+     * the frame into the model-sized Bitmap samples it.
+     */
+    private static int[] referenceCropAndRescale(int[] src, int width, int height, int dst) {
+        final int minDim = Math.min(width, height);
+        final float offsetX = (width - minDim) / 2f;
+        final float offsetY = (height - minDim) / 2f;
+        final float scale = (float) minDim / dst;
+        int[] out = new int[dst * dst];
+        for (int j = 0; j < dst; ++j) {
+            float sy = Math.max(0, (j + 0.5f) * scale - 0.5f);
+            int y0 = Math.min((int) sy, minDim - 1);
+            int y1 = Math.min(y0 + 1, minDim - 1);
+            float fy = sy - y0;
+            for (int i = 0; i < dst; ++i) {
+                float sx = Math.max(0, (i + 0.5f) * scale - 0.5f);
+                int x0 = Math.min((int) sx, minDim - 1);
+                int x1 = Math.min(x0 + 1, minDim - 1);
+                float fx = sx - x0;
+                int pixel = 0xFF000000;
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    float c00 = channel(src, width, offsetX + x0, offsetY + y0, shift);
+                    float c01 = channel(src, width, offsetX + x1, offsetY + y0, shift);
+                    float c10 = channel(src, width, offsetX + x0, offsetY + y1, shift);
+                    float c11 = channel(src, width, offsetX + x1, offsetY + y1, shift);
+                    float top = c00 + (c01 - c00) * fx;
+                    float bottom = c10 + (c11 - c10) * fx;
+                    int value = Math.round(top + (bottom - top) * fy);
+                    pixel |= value << shift;
+                }
+                out[j * dst + i] = pixel;
+            }
+        }
+        return out;
+    }
+
+    private static float channel(int[] src, int width, float x, float y, int shift) {
+        return (src[(int) y * width + (int) x] >> shift) & 0xFF;
+    }
+}
@@ -0,0 +1,98 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScanCoordinatorTest {
+
+    private static class Recorder implements ScanCoordinator.Listener<String> {
+        final List<String> results = new ArrayList<>();
+
+        @Override
+        public void onScanResult(String result) {
+            results.add(result);
+        }
+    }
+
+    private static ScanCoordinator<String> coordinator(final AtomicInteger scans, long freshMs) {
+        return coordinator(scans, freshMs, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private static ScanCoordinator<String> coordinator(final AtomicInteger scans, long freshMs,
+                                                       long timeoutMs) {
+        return new ScanCoordinator<>(new ScanCoordinator.Scanner() {
+            @Override
+            public void startScan() {
+                scans.incrementAndGet();
+            }
+        }, freshMs, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void burstOfRequestsSharesOneScan() {
+        AtomicInteger scans = new AtomicInteger();
+        ScanCoordinator<String> coordinator = coordinator(scans, TimeUnit.MINUTES.toMillis(1));
+        Recorder button = new Recorder();
+        Recorder voice = new Recorder();
+
+        assertEquals(ScanCoordinator.Outcome.STARTED, coordinator.requestScan(button));
+        assertEquals(ScanCoordinator.Outcome.JOINED, coordinator.requestScan(voice));
+        assertEquals(ScanCoordinator.Outcome.JOINED, coordinator.requestScan(button));
+        assertEquals(ScanCoordinator.Outcome.JOINED, coordinator.requestScan(null));
+        coordinator.complete("coke");
+
+        assertEquals(1, scans.get());
+        assertEquals(1, button.results.size());
+        assertEquals("coke", voice.results.get(0));
+
+        // Within the freshness window the last result is served without scanning.
+        assertEquals(ScanCoordinator.Outcome.FRESH, coordinator.requestScan(voice));
+        assertEquals("coke", voice.results.get(1));
+        assertEquals(1, coordinator.getScanCount());
+        assertEquals(5, coordinator.getRequestCount());
+    }
+
+    @Test
+    public void staleOrFailedResultsScanAgain() {
+        AtomicInteger scans = new AtomicInteger();
+        ScanCoordinator<String> coordinator = coordinator(scans, 0);
+        coordinator.requestScan(null);
+        coordinator.complete("coke");
+        assertEquals(ScanCoordinator.Outcome.STARTED, coordinator.requestScan(null));
+        coordinator.complete(null);
+        assertFalse(coordinator.isScanning());
+        assertEquals(ScanCoordinator.Outcome.STARTED, coordinator.requestScan(null));
+        assertEquals(3, scans.get());
+    }
+
+    @Test
+    public void scanWithoutResultTimesOut() throws Exception {
+        AtomicInteger scans = new AtomicInteger();
+        ScanCoordinator<String> coordinator = coordinator(scans, 0, 200);
+        Recorder button = new Recorder();
+        Recorder voice = new Recorder();
+
+        coordinator.requestScan(button);
+        assertFalse(coordinator.expireOverdue());
+        Thread.sleep(250);
+        assertTrue(coordinator.expireOverdue());
+        assertFalse(coordinator.isScanning());
+        assertNull(button.results.get(0));
+
+        // A request past the timeout does not join the lost scan but starts a new one.
+        assertEquals(ScanCoordinator.Outcome.STARTED, coordinator.requestScan(button));
+        Thread.sleep(250);
+        assertEquals(ScanCoordinator.Outcome.STARTED, coordinator.requestScan(voice));
+        assertNull(button.results.get(1));
+        coordinator.complete("coke");
+        assertEquals("coke", voice.results.get(0));
+        assertEquals(3, scans.get());
+        assertEquals(2, coordinator.getTimeoutCount());
+    }
+}
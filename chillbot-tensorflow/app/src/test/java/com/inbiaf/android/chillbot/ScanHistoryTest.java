@@ -0,0 +1,124 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanHistoryTest {
+
+    private static final List<String> LABELS = Arrays.asList("cocacola", "perrier", "other");
+    private static final int COKE = 0;
+    private static final int PERRIER = 1;
+    private static final int OTHER = 2;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("history", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static Inventory inventory(int... present) {
+        final Inventory inventory = new Inventory(LABELS);
+        for (int label : present) {
+            inventory.set(label, true);
+        }
+        return inventory;
+    }
+
+    private static List<Long> timestamps(ScanHistory history, long from, long to) {
+        final List<Long> timestamps = new ArrayList<>();
+        history.scan(from, to, new ScanHistory.Visitor() {
+            @Override
+            public boolean visit(ScanHistory.Entry entry) {
+                timestamps.add(entry.getTimestampMillis());
+                return true;
+            }
+        });
+        return timestamps;
+    }
+
+    @Test
+    public void scansTimeRanges() throws Exception {
+        try (ScanHistory history = new ScanHistory(file, 3, 16)) {
+            final Inventory coke = inventory(COKE);
+            coke.setConfidences(new float[]{1f, 0f, 0.2f});
+            for (long t = 0; t < 10; ++t) {
+                assertTrue(history.record(t * 100, coke));
+            }
+            assertEquals(Arrays.asList(300L, 400L, 500L), timestamps(history, 250, 600));
+            assertTrue(timestamps(history, 1000, 2000).isEmpty());
+
+            history.scan(0, 1, new ScanHistory.Visitor() {
+                @Override
+                public boolean visit(ScanHistory.Entry entry) {
+                    assertTrue(entry.has(COKE));
+                    assertFalse(entry.has(PERRIER));
+                    assertEquals(1f, entry.getConfidence(COKE), 0f);
+                    assertEquals(0.2f, entry.getConfidence(OTHER), 1e-6f);
+                    return true;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void ringKeepsTheLatestRecords() throws Exception {
+        try (ScanHistory history = new ScanHistory(file, 3, 4)) {
+            for (long t = 0; t < 10; ++t) {
+                history.record(t, t == 2 ? inventory(PERRIER) : inventory(OTHER));
+            }
+            assertEquals(10, history.getRecordCount());
+            assertEquals(4, history.size());
+            assertEquals(Arrays.asList(6L, 7L, 8L, 9L), timestamps(history, 0, 100));
+            // Overwritten.
+            assertEquals(-1, history.lastSeen(PERRIER));
+            assertEquals(9, history.lastSeen(OTHER));
+        }
+    }
+
+    @Test
+    public void answersLastSeenAndPresence() throws Exception {
+        try (ScanHistory history = new ScanHistory(file, 3, 100)) {
+            history.record(1000, inventory(PERRIER));
+            history.record(2000, inventory(PERRIER, COKE));
+            history.record(3000, inventory(COKE));
+            history.record(4000, inventory(OTHER));
+            assertEquals(2000, history.lastSeen(PERRIER));
+            assertEquals(0.5f, history.presence(COKE, 0, 5000), 0f);
+            assertEquals(1f, history.presence(COKE, 2000, 3001), 0f);
+            assertTrue(Float.isNaN(history.presence(COKE, 5000, 6000)));
+        }
+    }
+
+    @Test
+    public void survivesReopeningAndKeepsOrder() throws Exception {
+        try (ScanHistory history = new ScanHistory(file, 3, 8)) {
+            history.record(500, inventory(COKE));
+        }
+        try (ScanHistory history = new ScanHistory(file, 3, 8)) {
+            assertEquals(500, history.lastSeen(COKE));
+            // Clock went back.
+            history.record(100, inventory(PERRIER));
+            assertEquals(500, history.lastSeen(PERRIER));
+            // Another model.
+            assertFalse(history.record(600, new Inventory(Arrays.asList("cocacola"))));
+        }
+        // Another label count starts over.
+        try (ScanHistory history = new ScanHistory(file, 4, 8)) {
+            assertEquals(0, history.size());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanSessionTest {
+
+    private static final List<String> LABELS = Arrays.asList("cocacola", "perrier");
+    private static final long FRAME = 66_000_000L;
+
+    private static Inventory frame(boolean cocacola, boolean perrier) {
+        final Inventory inventory = new Inventory(LABELS);
+        inventory.set(0, cocacola);
+        inventory.set(1, perrier);
+        return inventory;
+    }
+
+    @Test
+    public void waitsForEveryLabelToSettle() {
+        final ScanSession scan = new ScanSession(15, 0.5f, FRAME, 0.05f, 2);
+        long time = 0;
+        assertFalse(scan.add(frame(true, false), time));
+        // cocacola stays put while perrier's vote climbs 0.5, 0.25, 0.125, 0.0625 per frame.
+        for (int i = 0; i < 5; ++i) {
+            assertFalse("frame " + (i + 2), scan.add(frame(true, true), time += FRAME));
+        }
+        assertTrue(scan.add(frame(true, true), time += FRAME));
+        assertTrue(scan.isConverged());
+        assertEquals(7, scan.getFrameCount());
+        assertTrue(scan.getResult().has(0));
+        assertTrue(scan.getResult().has(1));
+    }
+
+    @Test
+    public void steadySceneEndsAfterTheConvergenceFrames() {
+        final ScanSession scan = new ScanSession(15, 0.5f, FRAME, 0.05f, 2);
+        assertFalse(scan.add(frame(false, true), 0));
+        assertFalse(scan.add(frame(false, true), FRAME));
+        assertTrue(scan.add(frame(false, true), 2 * FRAME));
+        assertFalse(scan.getResult().has(0));
+        assertTrue(scan.getResult().has(1));
+    }
+}
@@ -0,0 +1,71 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StartupCoordinatorTest {
+
+    @Test
+    public void tasksRunInParallelBehindTheGate() throws Exception {
+        // Both tasks must be running at the same time to get past the barrier.
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger readyCalls = new AtomicInteger();
+        StartupCoordinator startup = new StartupCoordinator();
+        startup.addTask("model", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                barrier.await(5, TimeUnit.SECONDS);
+            }
+        });
+        startup.addTask("camera", new StartupCoordinator.Task() {
+            @Override
+            public void run() throws Exception {
+                barrier.await(5, TimeUnit.SECONDS);
+                throw new IllegalStateException("no camera");
+            }
+        });
+        startup.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                readyCalls.incrementAndGet();
+            }
+        });
+        assertFalse(startup.isReady());
+        assertFalse(startup.markFirstAnswer());
+
+        startup.start();
+        assertTrue(startup.awaitReady(10, TimeUnit.SECONDS));
+        assertEquals(1, readyCalls.get());
+        assertTrue(startup.getTimeToReadyMillis() >= 0);
+        assertEquals(2, startup.getTaskDurationsMillis().size());
+        assertEquals(1, startup.getFailures().size());
+        assertTrue(startup.getFailures().get("camera") instanceof IllegalStateException);
+
+        // Late callbacks run right away.
+        startup.whenReady(new Runnable() {
+            @Override
+            public void run() {
+                readyCalls.incrementAndGet();
+            }
+        });
+        assertEquals(2, readyCalls.get());
+    }
+
+    @Test
+    public void onlyTheFirstAnswerIsTimed() {
+        StartupCoordinator startup = new StartupCoordinator();
+        assertEquals(-1, startup.getTimeToFirstAnswerMillis());
+        startup.start();
+        assertTrue(startup.isReady());
+        assertTrue(startup.markFirstAnswer());
+        long first = startup.getTimeToFirstAnswerMillis();
+        assertTrue(first >= 0);
+        assertFalse(startup.markFirstAnswer());
+        assertEquals(first, startup.getTimeToFirstAnswerMillis());
+    }
+}
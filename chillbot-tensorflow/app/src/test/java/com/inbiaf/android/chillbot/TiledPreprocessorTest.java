@@ -0,0 +1,84 @@
+package com.inbiaf.android.chillbot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the tiles cover the whole frame with overlap, and that preparing them in
+ * parallel writes the same batch as each tile's kernel on its own.
+ */
+public class TiledPreprocessorTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int WINDOW = 320;
+    private static final int OVERLAP = 64;
+    private static final int DST_SIZE = 224;
+
+    @Test
+    public void layoutCoversFrameWithOverlap() {
+        TileLayout layout = new TileLayout(WIDTH, HEIGHT, WINDOW, OVERLAP);
+        assertEquals(6, layout.getTileCount());
+
+        boolean[] covered = new boolean[WIDTH * HEIGHT];
+        for (int t = 0; t < layout.getTileCount(); ++t) {
+            int left = layout.getLeft(t);
+            int top = layout.getTop(t);
+            assertTrue(left >= 0 && left + WINDOW <= WIDTH);
+            assertTrue(top >= 0 && top + WINDOW <= HEIGHT);
+            for (int y = top; y < top + WINDOW; ++y) {
+                for (int x = left; x < left + WINDOW; ++x) {
+                    covered[y * WIDTH + x] = true;
+                }
+            }
+            // Horizontal neighbours in the same row overlap by at least the minimum.
+            if (t + 1 < layout.getTileCount() && layout.getTop(t + 1) == top) {
+                assertTrue(left + WINDOW - layout.getLeft(t + 1) >= OVERLAP);
+            }
+        }
+        for (boolean pixel : covered) {
+            assertTrue(pixel);
+        }
+    }
+
+    @Test
+    public void parallelTilesMatchSerialKernels() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; ++i) {
+            pixels[i] = 0xFF000000 | (int) (i * 2654435761L);
+        }
+        TileLayout layout = new TileLayout(WIDTH, HEIGHT, WINDOW, OVERLAP);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            TiledPreprocessor tiles = new TiledPreprocessor(layout, DST_SIZE, DST_SIZE, false,
+                    128, 128.0f, executor);
+            ByteBuffer batch = allocate(tiles.getOutputSize());
+            tiles.process(pixels, batch);
+            assertEquals(tiles.getOutputSize(), batch.position());
+
+            ByteBuffer expected = allocate(tiles.getOutputSize());
+            for (int t = 0; t < layout.getTileCount(); ++t) {
+                new RgbToTensorKernel(WIDTH, HEIGHT, layout.getLeft(t), layout.getTop(t),
+                        WINDOW, WINDOW, DST_SIZE, DST_SIZE, false, 128, 128.0f)
+                        .process(pixels, expected);
+            }
+            batch.rewind();
+            expected.rewind();
+            assertEquals(expected, batch);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
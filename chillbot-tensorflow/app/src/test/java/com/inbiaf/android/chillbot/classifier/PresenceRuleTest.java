@@ -0,0 +1,50 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import com.inbiaf.android.chillbot.Inventory;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PresenceRuleTest {
+
+    private static final List<String> LABELS =
+            Arrays.asList("cocacola", "perrier", "other", "water");
+
+    private static Inventory apply(float... scores) {
+        final TopKSelector top = new TopKSelector(3);
+        top.select(scores);
+        final Inventory inventory = new Inventory(LABELS);
+        new PresenceRule(LABELS).apply(top, inventory);
+        return inventory;
+    }
+
+    private static String present(Inventory inventory) {
+        assertEquals(1, inventory.countPresent());
+        return LABELS.get(inventory.nextPresent(0));
+    }
+
+    @Test
+    public void otherWinsAboveItsThreshold() {
+        assertEquals("other", present(apply(0.6f, 0.2f, 0.15f, 0.05f)));
+    }
+
+    @Test
+    public void perrierWinsAtATenthOfCocacola() {
+        assertEquals("perrier", present(apply(0.8f, 0.09f, 0.05f, 0.06f)));
+        assertEquals("cocacola", present(apply(0.9f, 0.08f, 0.01f, 0.01f)));
+    }
+
+    @Test
+    public void fallsBackToOther() {
+        assertEquals("other", present(apply(0.04f, 0f, 0.05f, 0.91f)));
+    }
+
+    @Test
+    public void unknownLabelsAreNeverPresent() {
+        assertEquals("cocacola", present(apply(0.3f, 0.01f, 0.01f, 0.68f)));
+    }
+}
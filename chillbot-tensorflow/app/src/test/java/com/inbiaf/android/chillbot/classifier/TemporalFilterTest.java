@@ -0,0 +1,66 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TemporalFilterTest {
+
+    private static final long FRAME = 66_000_000L;
+
+    @Test
+    public void stepFollowsTheTimeBetweenFrames() {
+        TemporalFilter filter = new TemporalFilter(1, 1, 0.5f, FRAME, 0.01f, 2, false);
+        float[] row = {1};
+        filter.update(row, 0);
+        assertEquals(0.5f, row[0], 1e-6f);
+
+        // Two nominal intervals at once close the gap as much as two frames would.
+        row[0] = 1;
+        filter.update(row, 2 * FRAME);
+        assertEquals(0.875f, row[0], 1e-6f);
+    }
+
+    @Test
+    public void convergesOnceTheTopEntryIsStable() {
+        TemporalFilter filter = new TemporalFilter(2, 1, 0.5f, FRAME, 0.05f, 2, true);
+        long time = 0;
+        float[] row = {0.9f, 0.1f};
+        filter.update(row, time);
+        assertFalse(filter.isConverged());
+        row = new float[]{0.9f, 0.1f};
+        filter.update(row, time += FRAME);
+        assertFalse(filter.isConverged());
+        row = new float[]{0.9f, 0.1f};
+        filter.update(row, time += FRAME);
+        assertTrue(filter.isConverged());
+        assertEquals(0, filter.getTopIndex());
+
+        // A new leader starts the count again.
+        row = new float[]{0, 1};
+        filter.update(row, time += FRAME);
+        row = new float[]{0, 1};
+        filter.update(row, time += FRAME);
+        assertFalse(filter.isConverged());
+
+        filter.reset();
+        assertEquals(0, filter.getUpdateCount());
+        assertEquals(-1, filter.getTopIndex());
+    }
+
+    @Test
+    public void everyEntryConvergenceWaitsForTheSlowestValue() {
+        TemporalFilter filter = new TemporalFilter(2, 1, 0.5f, FRAME, 0.05f, 2, true,
+                TemporalFilter.Convergence.EVERY_ENTRY);
+        long time = 0;
+        filter.update(new float[]{1, 0}, time);
+        // The top entry is steady, but the second one still moves by 0.5, 0.25, ...
+        for (int i = 0; i < 4; ++i) {
+            filter.update(new float[]{1, 1}, time += FRAME);
+            assertFalse(filter.isConverged());
+        }
+        filter.update(new float[]{1, 1}, time += FRAME);
+        filter.update(new float[]{1, 1}, time += FRAME);
+        assertTrue(filter.isConverged());
+    }
+}
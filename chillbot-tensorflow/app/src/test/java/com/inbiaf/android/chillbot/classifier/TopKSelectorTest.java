@@ -0,0 +1,34 @@
+package com.inbiaf.android.chillbot.classifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TopKSelectorTest {
+
+    @Test
+    public void selectsHighestFloatScoresInOrder() {
+        TopKSelector top = new TopKSelector(3);
+        assertEquals(3, top.select(new float[]{0.1f, 0.5f, 0.05f, 0.3f, 0.9f, 0.2f}));
+        assertEquals(4, top.getIndex(0));
+        assertEquals(1, top.getIndex(1));
+        assertEquals(3, top.getIndex(2));
+        assertEquals(0.9f, top.getScore(0), 0f);
+        assertEquals(0.3f, top.scoreOf(3), 0f);
+        assertEquals(-1f, top.scoreOf(0), 0f);
+
+        assertEquals(2, top.select(new float[]{0.4f, 0.6f}));
+        assertEquals(1, top.getIndex(0));
+        assertEquals(-1f, top.scoreOf(4), 0f);
+    }
+
+    @Test
+    public void treatsQuantizedScoresAsUnsigned() {
+        TopKSelector top = new TopKSelector(2);
+        assertEquals(2, top.select(new byte[]{10, (byte) 200, 127, (byte) 255}));
+        assertEquals(3, top.getIndex(0));
+        assertEquals(1, top.getIndex(1));
+        assertEquals(1.0f, top.getScore(0), 0f);
+        assertEquals(200 / 255.0f, top.getScore(1), 1e-6f);
+    }
+}